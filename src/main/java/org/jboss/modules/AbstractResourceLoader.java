@@ -140,4 +140,13 @@ public abstract class AbstractResourceLoader implements ResourceLoader {
     public Collection<String> getPaths() {
         return Collections.emptySet();
     }
+
+    /**
+     * Get the filter of the entries of this loader, if it has built one.
+     *
+     * @return the entry filter, or {@code null} if every entry may be present
+     */
+    EntryFilter getEntryFilter() {
+        return null;
+    }
 }
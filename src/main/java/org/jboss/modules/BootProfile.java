@@ -0,0 +1,427 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A boot-time class loading profile.  While recording, every class defined by a module of the boot module loader is
+ * appended, in definition order, to the profile.  The profile is written once the recording window has elapsed (or
+ * at shutdown, if that comes first).  On a later boot the profile is replayed by a bounded pool of threads: first all
+ * recorded modules are loaded and linked in parallel, then their classes are loaded (without initialization) in
+ * recorded order.  Modules whose resource roots changed since the profile was written are skipped.
+ * <p>
+ * Classes which the replay itself defines are not recorded as such, or the profile would perpetuate itself and
+ * classes which boot no longer needs would never drop out of it.  Such a class is only recorded once some other
+ * thread asks its module class loader for it.
+ * <p>
+ * Recording and replay are enabled by setting {@code jboss.modules.boot-profile} to the profile file name.
+ */
+final class BootProfile {
+    static final String FILE_NAME;
+    static final int THREADS;
+    static final long RECORD_TIME;
+    static final int MAX_CLASSES;
+
+    private static final String HEADER = "#jboss-modules boot profile 1";
+    private static final int CHUNK_SIZE = 64;
+
+    private static volatile BootProfile active;
+
+    static {
+        final String fileName = AccessController.doPrivileged(new PropertyReadAction("jboss.modules.boot-profile", ""));
+        FILE_NAME = fileName.length() == 0 ? null : fileName;
+        THREADS = Integer.parseInt(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.boot-profile.threads", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+        RECORD_TIME = Long.parseLong(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.boot-profile.record-time", "60000")));
+        MAX_CLASSES = Integer.parseInt(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.boot-profile.max-classes", "100000")));
+    }
+
+    private final File file;
+    private final ModuleLoader moduleLoader;
+    private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ConcurrentHashMap<Entry, Boolean> replayed = new ConcurrentHashMap<Entry, Boolean>();
+    private final AtomicBoolean written = new AtomicBoolean();
+
+    BootProfile(final File file, final ModuleLoader moduleLoader) {
+        this.file = file;
+        this.moduleLoader = moduleLoader;
+    }
+
+    /**
+     * Record a class definition in the active profile, if any.
+     *
+     * @param module the defining module
+     * @param className the defined class name
+     */
+    static void recordDefine(final Module module, final String className) {
+        final BootProfile profile = active;
+        if (profile != null) {
+            if (Thread.currentThread() instanceof ReplayThread) {
+                profile.replayed.put(new Entry(module, className), Boolean.TRUE);
+            } else {
+                profile.record(module, className);
+            }
+        }
+    }
+
+    /**
+     * Record a request for an already defined class in the active profile, if the class was defined by the replay
+     * and has not been requested outside of it so far.
+     *
+     * @param module the defining module
+     * @param className the requested class name
+     */
+    static void recordUse(final Module module, final String className) {
+        final BootProfile profile = active;
+        if (profile != null && ! profile.replayed.isEmpty() && ! (Thread.currentThread() instanceof ReplayThread)) {
+            if (profile.replayed.remove(new Entry(module, className)) != null) {
+                profile.record(module, className);
+            }
+        }
+    }
+
+    /**
+     * Start replaying the existing profile (if any) in the background and start recording a new one.  Does nothing
+     * unless a profile file is configured.
+     *
+     * @param moduleLoader the boot module loader
+     */
+    static void start(final ModuleLoader moduleLoader) {
+        if (FILE_NAME == null) {
+            return;
+        }
+        final BootProfile profile = new BootProfile(new File(FILE_NAME), moduleLoader);
+        final List<ProfiledModule> modules = profile.read();
+        profile.startRecording();
+        if (modules != null && THREADS > 0) {
+            final Thread thread = new ReplayThread(new Runnable() {
+                public void run() {
+                    profile.replay(modules, THREADS);
+                }
+            }, "Boot Profile Replay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void startRecording() {
+        activate();
+        final Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(RECORD_TIME);
+                } catch (InterruptedException ignored) {
+                }
+                stopRecording();
+            }
+        }, "Boot Profile Writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                stopRecording();
+            }
+        }, "Boot Profile Shutdown"));
+    }
+
+    void activate() {
+        active = this;
+    }
+
+    void stopRecording() {
+        if (active == this) {
+            active = null;
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            Module.log.trace(e, "Failed to write boot profile %s", file);
+        }
+    }
+
+    void record(final Module module, final String className) {
+        if (module.getModuleLoader() != moduleLoader || size.get() >= MAX_CLASSES) {
+            return;
+        }
+        size.incrementAndGet();
+        entries.add(new Entry(module, className));
+    }
+
+    /**
+     * Write the recorded profile.  The file is replaced atomically, so a concurrently starting process never sees a
+     * partial profile.  Only the first call has any effect.
+     *
+     * @return {@code true} if the profile was written
+     * @throws IOException if writing failed
+     */
+    boolean write() throws IOException {
+        if (! written.compareAndSet(false, true)) {
+            return false;
+        }
+        final Map<Module, Integer> indexes = new LinkedHashMap<Module, Integer>();
+        final StringBuilder classes = new StringBuilder();
+        for (Entry entry : entries) {
+            Integer index = indexes.get(entry.module);
+            if (index == null) {
+                index = Integer.valueOf(indexes.size());
+                indexes.put(entry.module, index);
+            }
+            classes.append("C ").append(index).append(' ').append(entry.className).append('\n');
+        }
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && ! parent.exists()) {
+            parent.mkdirs();
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<Module, Integer> entry : indexes.entrySet()) {
+                final Module module = entry.getKey();
+                writer.write("M " + entry.getValue() + ' ' + module.getIdentifier() + ' ' + getStamp(module) + '\n');
+            }
+            writer.write(classes.toString());
+        } finally {
+            writer.close();
+        }
+        if (! tmp.renameTo(file)) {
+            // some platforms refuse to rename over an existing file
+            file.delete();
+            if (! tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Failed to replace boot profile " + file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the profile file.
+     *
+     * @return the profiled modules with their classes in recorded order, or {@code null} if there is no usable profile
+     */
+    List<ProfiledModule> read() {
+        if (! file.isFile()) {
+            return null;
+        }
+        final List<ProfiledModule> modules = new ArrayList<ProfiledModule>();
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                if (! HEADER.equals(reader.readLine())) {
+                    return null;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int s1 = line.indexOf(' ', 2);
+                    if (line.length() < 2 || s1 == -1) {
+                        return null;
+                    }
+                    final int index = Integer.parseInt(line.substring(2, s1));
+                    if (line.charAt(0) == 'M') {
+                        final int s2 = line.lastIndexOf(' ');
+                        if (index != modules.size() || s2 <= s1) {
+                            return null;
+                        }
+                        modules.add(new ProfiledModule(ModuleIdentifier.fromString(line.substring(s1 + 1, s2)), Long.parseLong(line.substring(s2 + 1))));
+                    } else if (line.charAt(0) == 'C' && index < modules.size()) {
+                        modules.get(index).classNames.add(line.substring(s1 + 1));
+                    } else {
+                        return null;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Module.log.trace(e, "Failed to read boot profile %s", file);
+            return null;
+        } catch (RuntimeException e) {
+            Module.log.trace(e, "Ignoring malformed boot profile %s", file);
+            return null;
+        }
+        return modules;
+    }
+
+    /**
+     * Replay a profile.  The first wave loads and links every profiled module; once all modules are available, the
+     * second wave loads their classes in recorded order, in chunks spread over the pool.  Modules which cannot be
+     * loaded, or whose resource roots changed since the profile was written, are skipped.  Blocks until the replay
+     * is complete.
+     *
+     * @param modules the profiled modules
+     * @param threads the maximum number of threads to use
+     * @return the number of classes which were loaded
+     */
+    int replay(final List<ProfiledModule> modules, final int threads) {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new ReplayThread(r, "Boot Profile Replay " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            final List<Future<Module>> loaded = new ArrayList<Future<Module>>(modules.size());
+            for (final ProfiledModule profiled : modules) {
+                loaded.add(executor.submit(new Callable<Module>() {
+                    public Module call() throws Exception {
+                        final Module module = moduleLoader.loadModule(profiled.identifier);
+                        return getStamp(module) == profiled.stamp ? module : null;
+                    }
+                }));
+            }
+            final List<Future<Integer>> defined = new ArrayList<Future<Integer>>();
+            final int size = modules.size();
+            for (int i = 0; i < size; i++) {
+                final Module module;
+                try {
+                    module = loaded.get(i).get();
+                } catch (Exception e) {
+                    continue;
+                }
+                if (module == null) {
+                    continue;
+                }
+                final ModuleClassLoader classLoader = module.getClassLoaderPrivate();
+                final List<String> classNames = modules.get(i).classNames;
+                for (int start = 0; start < classNames.size(); start += CHUNK_SIZE) {
+                    final List<String> chunk = classNames.subList(start, Math.min(start + CHUNK_SIZE, classNames.size()));
+                    defined.add(executor.submit(new Callable<Integer>() {
+                        public Integer call() {
+                            int cnt = 0;
+                            for (String className : chunk) {
+                                try {
+                                    Class.forName(className, false, classLoader);
+                                    cnt++;
+                                } catch (ClassNotFoundException ignored) {
+                                } catch (LinkageError ignored) {
+                                }
+                            }
+                            return Integer.valueOf(cnt);
+                        }
+                    }));
+                }
+            }
+            int total = 0;
+            for (Future<Integer> future : defined) {
+                try {
+                    total += future.get().intValue();
+                } catch (Exception ignored) {
+                }
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compute a stamp of the module's file-based resource roots.  It changes whenever a JAR root is rewritten or a
+     * file or directory is added to, removed from or renamed within a directory root; see
+     * {@link ResourceRootIndex#getStamp(File)}.
+     *
+     * @param module the module
+     * @return the stamp
+     */
+    static long getStamp(final Module module) {
+        long stamp = 17;
+        for (ResourceLoader loader : module.getClassLoaderPrivate().getResourceLoaders()) {
+            while (loader instanceof FilteredResourceLoader) {
+                loader = ((FilteredResourceLoader) loader).getLoader();
+            }
+            final File root;
+            if (loader instanceof JarFileResourceLoader) {
+                root = ((JarFileResourceLoader) loader).getFile();
+            } else if (loader instanceof MappedJarResourceLoader) {
+                root = ((MappedJarResourceLoader) loader).getFile();
+            } else if (loader instanceof NativeLibraryResourceLoader) {
+                root = ((NativeLibraryResourceLoader) loader).getRoot();
+            } else {
+                root = null;
+            }
+            stamp = stamp * 31 + (root == null ? 0 : ResourceRootIndex.getStamp(root));
+        }
+        return stamp;
+    }
+
+    static final class ProfiledModule {
+        final ModuleIdentifier identifier;
+        final long stamp;
+        final List<String> classNames = new ArrayList<String>();
+
+        ProfiledModule(final ModuleIdentifier identifier, final long stamp) {
+            this.identifier = identifier;
+            this.stamp = stamp;
+        }
+    }
+
+    static final class Entry {
+        final Module module;
+        final String className;
+
+        Entry(final Module module, final String className) {
+            this.module = module;
+            this.className = className;
+        }
+
+        public boolean equals(final Object obj) {
+            return obj instanceof Entry && ((Entry) obj).module == module && ((Entry) obj).className.equals(className);
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(module) * 31 + className.hashCode();
+        }
+    }
+
+    static final class ReplayThread extends Thread {
+        ReplayThread(final Runnable target, final String name) {
+            super(target, name);
+        }
+    }
+}
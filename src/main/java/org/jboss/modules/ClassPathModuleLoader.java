@@ -26,7 +26,6 @@ import org.jboss.modules.filter.PathFilters;
 
 import java.io.File;
 import java.security.AccessController;
-import java.util.jar.JarFile;
 
 /**
  * Date: 06.05.2011
@@ -119,7 +118,7 @@ final class ClassPathModuleLoader extends ModuleLoader {
                     }
                     if (root.isFile()) {
                         try {
-                            builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(ResourceLoaders.createJarResourceLoader(root.getParent(), new JarFile(root, true))));
+                            builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(ResourceLoaders.createSharedJarResourceLoader(root.getParent(), root)));
                         } catch (Exception e) {
                             Module.log.trace(e, "Resource %s does not appear to be a valid JAR. Loaded as file resource.", root);
                             builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(ResourceLoaders.createFileResourceLoader(entry, root)));
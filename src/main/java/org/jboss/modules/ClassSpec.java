@@ -22,6 +22,7 @@
 
 package org.jboss.modules;
 
+import java.nio.ByteBuffer;
 import java.security.CodeSource;
 
 /**
@@ -32,6 +33,7 @@ import java.security.CodeSource;
  */
 public final class ClassSpec {
     private byte[] bytes;
+    private ByteBuffer byteBuffer;
     private CodeSource codeSource;
     private AssertionSetting assertionSetting = AssertionSetting.INHERIT;
 
@@ -42,21 +44,52 @@ public final class ClassSpec {
     }
 
     /**
-     * Get the class file bytes.
+     * Get the class file bytes.  If the class file was given as a byte buffer, its contents are copied into a
+     * new array.
      *
      * @return the class file bytes
      */
     public byte[] getBytes() {
+        byte[] bytes = this.bytes;
+        final ByteBuffer byteBuffer = this.byteBuffer;
+        if (bytes == null && byteBuffer != null) {
+            final ByteBuffer duplicate = byteBuffer.duplicate();
+            bytes = new byte[duplicate.remaining()];
+            duplicate.get(bytes);
+            this.bytes = bytes;
+        }
         return bytes;
     }
 
     /**
-     * Set the class file bytes.
+     * Set the class file bytes.  This clears any byte buffer previously set.
      *
      * @param bytes the class file bytes
      */
     public void setBytes(final byte[] bytes) {
         this.bytes = bytes;
+        byteBuffer = null;
+    }
+
+    /**
+     * Get the class file byte buffer, if the class file was given as one.  The bytes between the buffer's position
+     * and limit make up the class file.
+     *
+     * @return the class file byte buffer, or {@code null} if the class file was given as a byte array
+     */
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    /**
+     * Set the class file bytes as a heap or direct byte buffer.  The bytes between the buffer's position and limit
+     * make up the class file; the buffer itself is not modified.  This clears any byte array previously set.
+     *
+     * @param byteBuffer the class file byte buffer
+     */
+    public void setByteBuffer(final ByteBuffer byteBuffer) {
+        this.byteBuffer = byteBuffer;
+        bytes = null;
     }
 
     /**
@@ -25,6 +25,7 @@ package org.jboss.modules;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.security.AccessController;
 import java.security.ProtectionDomain;
 import java.security.SecureClassLoader;
 import java.util.ArrayList;
@@ -47,6 +48,12 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
 
     private static final ThreadLocal<Boolean> GET_PACKAGE_SUPPRESSOR = new ThreadLocal<Boolean>();
 
+    /**
+     * Up to Java 8, {@link ClassLoader#definePackage} calls back into {@link #getPackage(String)}, which must not
+     * see packages of other class loaders while a package is being defined.
+     */
+    private static final boolean SUPPRESS_GET_PACKAGE = AccessController.doPrivileged(new PropertyReadAction("java.specification.version", "1.8")).startsWith("1.");
+
     static {
         if (! ClassLoader.registerAsParallelCapable()) {
             throw new Error("Failed to register " + ConcurrentClassLoader.class.getName() + " as parallel-capable");
@@ -225,12 +232,10 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
      * permission to access it
      */
     public final URL getResource(final String name) {
-        for (String s : Module.systemPaths) {
-            if (name.startsWith(s)) {
-                // Whatever loads jboss-modules.jar should have it's classes accessible.
-                // This could even be the bootclasspath, in which case CL is null, and we prefer the system CL
-                return definingLoader != null ? definingLoader.getResource(name) : ClassLoader.getSystemResource(name);
-            }
+        if (Module.systemPaths.matches(name)) {
+            // Whatever loads jboss-modules.jar should have it's classes accessible.
+            // This could even be the bootclasspath, in which case CL is null, and we prefer the system CL
+            return definingLoader != null ? definingLoader.getResource(name) : ClassLoader.getSystemResource(name);
         }
         return findResource(name, false);
     }
@@ -245,10 +250,8 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
      * @throws IOException if an I/O error occurs
      */
     public final Enumeration<URL> getResources(final String name) throws IOException {
-        for (String s : Module.systemPaths) {
-            if (name.startsWith(s)) {
-                return definingLoader != null ? definingLoader.getResources(name) : ClassLoader.getSystemResources(name);
-            }
+        if (Module.systemPaths.matches(name)) {
+            return definingLoader != null ? definingLoader.getResources(name) : ClassLoader.getSystemResources(name);
         }
         return findResources(name, false);
     }
@@ -341,10 +344,8 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
      * @return the resource stream, or {@code null} if the resource is not found
      */
     public final InputStream getResourceAsStream(final String name) {
-        for (String s : Module.systemPaths) {
-            if (name.startsWith(s)) {
-                return definingLoader != null ? definingLoader.getResourceAsStream(name) : ClassLoader.getSystemResourceAsStream(name);
-            }
+        if (Module.systemPaths.matches(name)) {
+            return definingLoader != null ? definingLoader.getResourceAsStream(name) : ClassLoader.getSystemResourceAsStream(name);
         }
         return findResourceAsStream(name, false);
     }
@@ -371,10 +372,8 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
         if (className.length() == 0) {
             throw new IllegalArgumentException("name is empty");
         }
-        for (String s : Module.systemPackages) {
-            if (className.startsWith(s)) {
-                return definingLoader != null ? definingLoader.loadClass(className) : findSystemClass(className);
-            }
+        if (Module.systemPackages.matches(className)) {
+            return definingLoader != null ? definingLoader.loadClass(className) : findSystemClass(className);
         }
         return performLoadClassUnchecked(className, exportsOnly, resolve);
     }
@@ -404,13 +403,10 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
      * @return the package, or {@code null} if no such package is visible to this class loader
      */
     protected final Package getPackage(final String name) {
-        final String packageName = name + ".";
-        for (String s : Module.systemPackages) {
-            if (packageName.startsWith(s)) {
-                return Package.getPackage(name);
-            }
+        if (Module.systemPackages.matches(name, '.')) {
+            return Package.getPackage(name);
         }
-        if (GET_PACKAGE_SUPPRESSOR.get() == Boolean.TRUE) {
+        if (SUPPRESS_GET_PACKAGE && GET_PACKAGE_SUPPRESSOR.get() == Boolean.TRUE) {
             return null;
         }
         return getPackageByName(name);
@@ -466,13 +462,14 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
      * @return the newly defined package, or the existing one if one was already defined
      */
     protected Package definePackage(final String name, final String specTitle, final String specVersion, final String specVendor, final String implTitle, final String implVersion, final String implVendor, final URL sealBase) throws IllegalArgumentException {
-        ThreadLocal<Boolean> suppressor = GET_PACKAGE_SUPPRESSOR;
-        suppressor.set(Boolean.TRUE);
+        Package existing = packages.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        // define outside of the map and then publish, so that no lock is held while the JDK defines the package
+        final ThreadLocal<Boolean> suppressor = GET_PACKAGE_SUPPRESSOR;
+        if (SUPPRESS_GET_PACKAGE) suppressor.set(Boolean.TRUE);
         try {
-            Package existing = packages.get(name);
-            if (existing != null) {
-                return existing;
-            }
             Package pkg;
             try {
                 pkg = super.definePackage(name, specTitle, specVersion, specVendor, implTitle, implVersion, implVendor, sealBase);
@@ -483,7 +480,7 @@ public abstract class ConcurrentClassLoader extends SecureClassLoader {
             existing = packages.putIfAbsent(name, pkg);
             return existing != null ? existing : pkg;
         } finally {
-            suppressor.remove();
+            if (SUPPRESS_GET_PACKAGE) suppressor.remove();
         }
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.Collection;
+
+/**
+ * A bloom filter over the entry names of a resource loader, built while its paths are indexed.  A loader whose
+ * filter rejects a name definitely does not have that entry, so it need not be asked for it; a name which the
+ * filter accepts may still be absent (a false positive).  Directory names are included, with or without their
+ * trailing slash.
+ */
+final class EntryFilter {
+    private static final int HASHES = 5;
+    private static final int BITS_PER_ENTRY = 10;
+
+    private final long[] bits;
+    private final int mask;
+
+    private EntryFilter(final int entries) {
+        // round up to a power of two, which gives between 10 and 20 bits per entry (under 1% false positives)
+        final int size = Integer.highestOneBit(Math.max(64, entries * BITS_PER_ENTRY - 1)) << 1;
+        bits = new long[size >>> 6];
+        mask = size - 1;
+    }
+
+    /**
+     * Create a filter over the given names.
+     *
+     * @param names the entry names
+     * @return the filter
+     */
+    static EntryFilter create(final Collection<String> names) {
+        final EntryFilter filter = new EntryFilter(names.size());
+        for (String name : names) {
+            filter.add(name);
+        }
+        return filter;
+    }
+
+    /**
+     * Get the entry filter of a resource loader.
+     *
+     * @param loader the resource loader
+     * @return the filter, or {@code null} if the loader has none
+     */
+    static EntryFilter of(final ResourceLoader loader) {
+        if (loader instanceof AbstractResourceLoader) {
+            return ((AbstractResourceLoader) loader).getEntryFilter();
+        } else if (loader instanceof FilteredResourceLoader) {
+            return ((FilteredResourceLoader) loader).getEntryFilter();
+        } else {
+            return null;
+        }
+    }
+
+    private void add(final String name) {
+        final int h1 = hash(name);
+        final int h2 = secondHash(h1);
+        final long[] bits = this.bits;
+        for (int i = 0; i < HASHES; i ++) {
+            final int bit = h1 + i * h2 & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Determine whether an entry may be present.
+     *
+     * @param name the entry name
+     * @return {@code false} if the entry is definitely absent, {@code true} if it may be present
+     */
+    boolean mayContain(final String name) {
+        final int h1 = hash(name);
+        final int h2 = secondHash(h1);
+        final long[] bits = this.bits;
+        for (int i = 0; i < HASHES; i ++) {
+            final int bit = h1 + i * h2 & mask;
+            if ((bits[bit >>> 6] & 1L << bit) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(final String name) {
+        // the same hash with or without leading and trailing slashes
+        int start = 0, end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '/') end --;
+        if (start < end && name.charAt(0) == '/') start ++;
+        if (start == 0 && end == name.length()) {
+            return name.hashCode();
+        }
+        int h = 0;
+        for (int i = start; i < end; i ++) {
+            h = 31 * h + name.charAt(i);
+        }
+        return h;
+    }
+
+    private static int secondHash(final int h1) {
+        int h = h1 * 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        // odd, so that successive probes never repeat within the table
+        return h | 1;
+    }
+}
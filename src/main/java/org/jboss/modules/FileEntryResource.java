@@ -22,11 +22,12 @@
 
 package org.jboss.modules;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  *
@@ -35,17 +36,18 @@ import java.net.URL;
 final class FileEntryResource implements Resource {
 
     private final String name;
-    private final File file;
-    private final URL url;
+    private final Path path;
+    private final long size;
+    private volatile URL url;
 
-    FileEntryResource(final String name, final File file, final URL url) {
+    FileEntryResource(final String name, final Path path, final long size) {
         this.name = name;
-        this.file = file;
-        this.url = url;
+        this.path = path;
+        this.size = size;
     }
 
     public long getSize() {
-        return file.length();
+        return size;
     }
 
     public String getName() {
@@ -53,10 +55,20 @@ final class FileEntryResource implements Resource {
     }
 
     public URL getURL() {
+        // most resources are only ever opened, so build the URL on first use
+        URL url = this.url;
+        if (url == null) {
+            try {
+                this.url = url = path.toFile().toURI().toURL();
+            } catch (MalformedURLException e) {
+                // must be invalid...?  (todo: check this out)
+                return null;
+            }
+        }
         return url;
     }
 
     public InputStream openStream() throws IOException {
-        return new FileInputStream(file);
+        return Files.newInputStream(path);
     }
 }
@@ -23,22 +23,28 @@
 package org.jboss.modules;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.CodeSigner;
 import java.security.CodeSource;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.jar.Manifest;
 
 /**
@@ -50,6 +56,8 @@ final class FileResourceLoader extends NativeLibraryResourceLoader {
     private final String rootName;
     private final Manifest manifest;
     private final CodeSource codeSource;
+    private final Path rootPath;
+    private volatile EntryFilter entryFilter;
 
     FileResourceLoader(final String rootName, final File root) {
         super(root);
@@ -60,6 +68,7 @@ final class FileResourceLoader extends NativeLibraryResourceLoader {
             throw new IllegalArgumentException("rootName is null");
         }
         this.rootName = rootName;
+        rootPath = root.toPath();
         final File manifestFile = new File(root, "META-INF" + File.separatorChar + "MANIFEST.MF");
         manifest = readManifestFile(manifestFile);
         final URL rootUrl;
@@ -84,40 +93,15 @@ final class FileResourceLoader extends NativeLibraryResourceLoader {
     }
 
     public ClassSpec getClassSpec(final String fileName) throws IOException {
-        final File file = new File(getRoot(), fileName);
-        if (! file.exists()) {
+        final Path path = resolve(fileName);
+        final byte[] bytes = path == null ? null : ResourceBytes.read(path);
+        if (bytes == null) {
             return null;
         }
-        final long size = file.length();
         final ClassSpec spec = new ClassSpec();
         spec.setCodeSource(codeSource);
-        final InputStream is = new FileInputStream(file);
-        try {
-            if (size <= (long) Integer.MAX_VALUE) {
-                final int castSize = (int) size;
-                byte[] bytes = new byte[castSize];
-                int a = 0, res;
-                while ((res = is.read(bytes, a, castSize - a)) > 0) {
-                    a += res;
-                }
-                // done
-                is.close();
-                spec.setBytes(bytes);
-                return spec;
-            } else {
-                throw new IOException("Resource is too large to be a valid class file");
-            }
-        } finally {
-            safeClose(is);
-        }
-    }
-
-    private static void safeClose(final Closeable closeable) {
-        if (closeable != null) try {
-            closeable.close();
-        } catch (IOException e) {
-            // ignore
-        }
+        spec.setBytes(bytes);
+        return spec;
     }
 
     public PackageSpec getPackageSpec(final String name) throws IOException {
@@ -125,23 +109,45 @@ final class FileResourceLoader extends NativeLibraryResourceLoader {
     }
 
     public Resource getResource(final String name) {
+        final Path path = resolve(name);
+        if (path == null) {
+            return null;
+        }
+        final BasicFileAttributes attributes;
         try {
-            final File file = new File(getRoot(), name);
-            if (! file.exists()) {
-                return null;
-            }
-            return new FileEntryResource(name, file, file.toURI().toURL());
-        } catch (MalformedURLException e) {
-            // must be invalid...?  (todo: check this out)
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // no such file
+            return null;
+        }
+        return new FileEntryResource(name, path, attributes.size());
+    }
+
+    private Path resolve(final String name) {
+        // names are relative to the root even with leading slashes
+        int idx = 0;
+        while (idx < name.length() && name.charAt(idx) == '/') {
+            idx ++;
+        }
+        try {
+            return rootPath.resolve(idx == 0 ? name : name.substring(idx));
+        } catch (InvalidPathException e) {
             return null;
         }
     }
 
     public Collection<String> getPaths() {
         final List<String> index = new ArrayList<String>();
-        // First check for an index file
-        final File indexFile = new File(getRoot().getPath() + ".index");
-        if (indexFile.exists()) {
+        final File root = getRoot();
+        // First check for a binary index which is still current
+        final ResourceRootIndex rootIndex = ResourceRootIndex.read(root, ResourceLoaders.DIRECTORY_ENTRY_FILTERS);
+        if (rootIndex != null) {
+            entryFilter = rootIndex.createEntryFilter(null);
+            return rootIndex.getPaths(index, null);
+        }
+        // Next check for a text index file, unless a binary index has superseded it
+        final File indexFile = new File(root.getPath() + ".index");
+        if (indexFile.exists() && ! ResourceRootIndex.getIndexFile(root).exists()) {
             try {
                 final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile)));
                 try {
@@ -159,54 +165,163 @@ final class FileResourceLoader extends NativeLibraryResourceLoader {
             }
         }
         // Manually build index, starting with the root path
-        index.add("");
-        buildIndex(index, getRoot(), "");
+        final ResourceRootIndex.Builder builder = new ResourceRootIndex.Builder(root);
+        builder.addPath("");
+        if (ResourceLoaders.PARALLEL_INDEX) {
+            buildIndexParallel(builder);
+        } else {
+            buildIndex(builder);
+        }
+        builder.getPaths(index, null);
+        if (ResourceLoaders.DIRECTORY_ENTRY_FILTERS) {
+            entryFilter = builder.createEntryFilter(null);
+        }
         if (ResourceLoaders.WRITE_INDEXES) {
             // Now try to write it
-            boolean ok = false;
+            builder.write();
+        }
+        return index;
+    }
+
+    private String nameOf(final Path path) {
+        final String name = rootPath.relativize(path).toString();
+        return File.separatorChar == '/' ? name : name.replace(File.separatorChar, '/');
+    }
+
+    void buildIndex(final ResourceRootIndex.Builder builder) {
+        try {
+            Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                    if (! dir.equals(rootPath)) {
+                        builder.addPath(nameOf(dir), attrs.lastModifiedTime().toMillis());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    builder.addEntry(nameOf(file.getParent()), file.getFileName().toString());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    // unreadable, or a link back up the tree; skip it
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // the visitor swallows failures
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Build the index with one task per directory on a shared fork-join pool, for very large exploded roots.
+     */
+    void buildIndexParallel(final ResourceRootIndex.Builder builder) {
+        Ancestor root = null;
+        try {
+            final Object key = Files.readAttributes(rootPath, BasicFileAttributes.class).fileKey();
+            if (key != null) {
+                // so that a link back to the root itself is recognized as well
+                root = new Ancestor(key, null);
+            }
+        } catch (IOException e) {
+            // the walk skips what it cannot read
+        }
+        final IndexTask task = new IndexTask(builder, rootPath, "", root);
+        if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == PoolHolder.POOL) {
+            task.invoke();
+        } else {
+            PoolHolder.POOL.invoke(task);
+        }
+    }
+
+    static final class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    EntryFilter getEntryFilter() {
+        return entryFilter;
+    }
+
+    void invalidateEntryFilter() {
+        entryFilter = null;
+    }
+
+    Path getRootPath() {
+        return rootPath;
+    }
+
+    static final class IndexTask extends RecursiveAction {
+        private static final long serialVersionUID = 0L;
+
+        private final ResourceRootIndex.Builder builder;
+        private final Path dir;
+        private final String name;
+        private final Ancestor ancestors;
+
+        IndexTask(final ResourceRootIndex.Builder builder, final Path dir, final String name, final Ancestor ancestors) {
+            this.builder = builder;
+            this.dir = dir;
+            this.name = name;
+            this.ancestors = ancestors;
+        }
+
+        protected void compute() {
+            final List<IndexTask> subtasks = new ArrayList<IndexTask>();
             try {
-                final FileOutputStream fos = new FileOutputStream(indexFile);
-                try {
-                    final OutputStreamWriter osw = new OutputStreamWriter(fos);
-                    try {
-                        final BufferedWriter writer = new BufferedWriter(osw);
-                        try {
-                            for (String name : index) {
-                                writer.write(name);
-                                writer.write('\n');
+                // visit just the children of this directory; subdirectories become subtasks
+                Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+                    public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                        final String fileName = file.getFileName().toString();
+                        if (attrs.isDirectory()) {
+                            final Object key = attrs.fileKey();
+                            if (key != null && Ancestor.contains(ancestors, key)) {
+                                // a link back up the tree
+                                return FileVisitResult.CONTINUE;
                             }
-                            writer.close();
-                            osw.close();
-                            fos.close();
-                            ok = true;
-                        } finally {
-                            safeClose(writer);
+                            final String subName = name.length() == 0 ? fileName : name + "/" + fileName;
+                            builder.addPath(subName, attrs.lastModifiedTime().toMillis());
+                            subtasks.add(new IndexTask(builder, file, subName, new Ancestor(key, ancestors)));
+                        } else {
+                            builder.addEntry(name, fileName);
                         }
-                    } finally {
-                        safeClose(osw);
+                        return FileVisitResult.CONTINUE;
                     }
-                } finally {
-                    safeClose(fos);
-                }
+
+                    public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
             } catch (IOException e) {
-                // failed, ignore
-            } finally {
-                if (! ok) {
-                    // well, we tried...
-                    indexFile.delete();
-                }
+                // the visitor swallows failures
+                throw new IllegalStateException(e);
             }
+            invokeAll(subtasks);
         }
-        return index;
     }
 
-    private void buildIndex(final List<String> index, final File root, final String pathBase) {
-        File[] files = root.listFiles();
-        if (files != null) for (File file : files) {
-            if (file.isDirectory()) {
-                index.add(pathBase + file.getName());
-                buildIndex(index, file, pathBase + file.getName() + "/");
+    static final class Ancestor {
+        private final Object key;
+        private final Ancestor parent;
+
+        Ancestor(final Object key, final Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        static boolean contains(Ancestor ancestor, final Object key) {
+            while (ancestor != null) {
+                if (key.equals(ancestor.key)) {
+                    return true;
+                }
+                ancestor = ancestor.parent;
             }
+            return false;
         }
     }
 }
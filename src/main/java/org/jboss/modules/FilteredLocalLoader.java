@@ -22,28 +22,107 @@
 
 package org.jboss.modules;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import org.jboss.modules.filter.ClassFilter;
+import org.jboss.modules.filter.ClassFilters;
 import org.jboss.modules.filter.PathFilter;
+import org.jboss.modules.filter.PathFilters;
 
 /**
 * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
 */
 class FilteredLocalLoader implements LocalLoader {
 
-    private final ClassFilter classFilter;
+    private static final ClassFilter[] NO_CLASS_FILTERS = new ClassFilter[0];
+    private static final PathFilter[] NO_PATH_FILTERS = new PathFilter[0];
+
+    private final ClassFilter[] classFilters;
     private final LocalLoader originalLoader;
-    private final PathFilter resourcePathFilter;
+    private final PathFilter[] resourcePathFilters;
 
     FilteredLocalLoader(final ClassFilter classFilter, final PathFilter resourcePathFilter, final LocalLoader originalLoader) {
-        this.classFilter = classFilter;
+        this(new ClassFilter[] { classFilter }, new PathFilter[] { resourcePathFilter }, originalLoader);
+    }
+
+    private FilteredLocalLoader(final ClassFilter[] classFilters, final PathFilter[] resourcePathFilters, final LocalLoader originalLoader) {
+        this.classFilters = classFilters;
         this.originalLoader = originalLoader;
-        this.resourcePathFilter = resourcePathFilter;
+        this.resourcePathFilters = resourcePathFilters;
+    }
+
+    /**
+     * Create a single filtered loader which applies all the given filters, in place of a chain of filtered loaders
+     * with one filter each.  Accept-all and duplicate filters are dropped, and if the original loader is itself a
+     * filtered loader, its filters are merged in.
+     *
+     * @param originalLoader the original loader
+     * @param classFilterStack the raw array of the class filter stack of the link walk
+     * @param resourceFilterStack the raw array of the resource filter stack of the link walk
+     * @param classImportFilter the class import filter of the dependency
+     * @param classExportFilter the class export filter of the dependency
+     * @param resourceImportFilter the resource import filter of the dependency
+     * @param resourceExportFilter the resource export filter of the dependency
+     * @return the filtered loader, the original loader if nothing is filtered, or {@code null} if the loader would
+     *      reject every class and resource
+     */
+    static LocalLoader create(LocalLoader originalLoader, final Object[] classFilterStack, final Object[] resourceFilterStack, final ClassFilter classImportFilter, final ClassFilter classExportFilter, final PathFilter resourceImportFilter, final PathFilter resourceExportFilter) {
+        final ArrayList<ClassFilter> classFilters = new ArrayList<ClassFilter>();
+        final ArrayList<PathFilter> resourcePathFilters = new ArrayList<PathFilter>();
+        addClassFilter(classFilters, classImportFilter);
+        addClassFilter(classFilters, classExportFilter);
+        addPathFilter(resourcePathFilters, resourceImportFilter);
+        addPathFilter(resourcePathFilters, resourceExportFilter);
+        for (Object filter : classFilterStack) {
+            addClassFilter(classFilters, (ClassFilter) filter);
+        }
+        for (Object filter : resourceFilterStack) {
+            addPathFilter(resourcePathFilters, (PathFilter) filter);
+        }
+        if (originalLoader instanceof FilteredLocalLoader) {
+            final FilteredLocalLoader filteredLoader = (FilteredLocalLoader) originalLoader;
+            for (ClassFilter filter : filteredLoader.classFilters) {
+                addClassFilter(classFilters, filter);
+            }
+            for (PathFilter filter : filteredLoader.resourcePathFilters) {
+                addPathFilter(resourcePathFilters, filter);
+            }
+            originalLoader = filteredLoader.originalLoader;
+        }
+        final boolean rejectClasses = classFilters.contains(ClassFilters.rejectAll());
+        final boolean rejectResources = resourcePathFilters.contains(PathFilters.rejectAll());
+        if (rejectClasses && rejectResources) {
+            return null;
+        }
+        if (classFilters.isEmpty() && resourcePathFilters.isEmpty()) {
+            return originalLoader;
+        }
+        return new FilteredLocalLoader(
+                rejectClasses ? new ClassFilter[] { ClassFilters.rejectAll() } : classFilters.toArray(NO_CLASS_FILTERS),
+                rejectResources ? new PathFilter[] { PathFilters.rejectAll() } : resourcePathFilters.toArray(NO_PATH_FILTERS),
+                originalLoader);
+    }
+
+    private static void addClassFilter(final List<ClassFilter> classFilters, final ClassFilter filter) {
+        if (filter != null && filter != ClassFilters.acceptAll() && ! classFilters.contains(filter)) {
+            classFilters.add(filter);
+        }
+    }
+
+    private static void addPathFilter(final List<PathFilter> pathFilters, final PathFilter filter) {
+        if (filter != null && filter != PathFilters.acceptAll() && ! pathFilters.contains(filter)) {
+            pathFilters.add(filter);
+        }
     }
 
     public Class<?> loadClassLocal(final String name, final boolean resolve) {
-        return classFilter.accept(name) ? originalLoader.loadClassLocal(name, resolve) : null;
+        for (ClassFilter classFilter : classFilters) {
+            if (! classFilter.accept(name)) {
+                return null;
+            }
+        }
+        return originalLoader.loadClassLocal(name, resolve);
     }
 
     public Package loadPackageLocal(final String name) {
@@ -51,6 +130,11 @@ class FilteredLocalLoader implements LocalLoader {
     }
 
     public List<Resource> loadResourceLocal(final String name) {
-        return resourcePathFilter.accept(name) ? originalLoader.loadResourceLocal(name) : Collections.<Resource>emptyList();
+        for (PathFilter resourcePathFilter : resourcePathFilters) {
+            if (! resourcePathFilter.accept(name)) {
+                return Collections.<Resource>emptyList();
+            }
+        }
+        return originalLoader.loadResourceLocal(name);
     }
 }
@@ -61,4 +61,12 @@ final class FilteredResourceLoader implements ResourceLoader {
     public Collection<String> getPaths() {
         return loader.getPaths();
     }
+
+    ResourceLoader getLoader() {
+        return loader;
+    }
+
+    EntryFilter getEntryFilter() {
+        return EntryFilter.of(loader);
+    }
 }
@@ -22,6 +22,7 @@
 
 package org.jboss.modules;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -33,14 +34,18 @@ import java.util.jar.JarFile;
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 final class JarEntryResource implements Resource {
+    private final JarFileResourceLoader loader;
     private final JarFile jarFile;
     private final JarEntry entry;
-    private final URL resourceURL;
+    private final String jarURIPrefix;
+    private volatile URL resourceURL;
 
-    JarEntryResource(final JarFile jarFile, final JarEntry entry, final URL resourceURL) {
+    JarEntryResource(final JarFileResourceLoader loader, final JarFile jarFile, final JarEntry entry, final String jarURIPrefix) {
+        // a shared JAR is closed once its loader is unreachable, so the loader must stay reachable through us
+        this.loader = loader;
         this.jarFile = jarFile;
         this.entry = entry;
-        this.resourceURL = resourceURL;
+        this.jarURIPrefix = jarURIPrefix;
     }
 
     public String getName() {
@@ -48,15 +53,33 @@ final class JarEntryResource implements Resource {
     }
 
     public URL getURL() {
+        // most resources are only ever opened, so build the URL on first use
+        URL resourceURL = this.resourceURL;
+        if (resourceURL == null) {
+            this.resourceURL = resourceURL = JarFileResourceLoader.getJarEntryURL(jarURIPrefix, entry.getName());
+        }
         return resourceURL;
     }
 
     public InputStream openStream() throws IOException {
-        return jarFile.getInputStream(entry);
+        return new EntryInputStream(jarFile.getInputStream(entry), this);
     }
 
     public long getSize() {
         final long size = entry.getSize();
         return size == -1 ? 0 : size;
     }
+
+    /**
+     * An entry stream which keeps its resource, and with it the JAR, open for as long as the stream is reachable.
+     */
+    static final class EntryInputStream extends FilterInputStream {
+        @SuppressWarnings("unused")
+        private final JarEntryResource resource;
+
+        EntryInputStream(final InputStream in, final JarEntryResource resource) {
+            super(in);
+            this.resource = resource;
+        }
+    }
 }
@@ -23,24 +23,24 @@
 package org.jboss.modules;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.CodeSigner;
 import java.security.CodeSource;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -55,6 +55,11 @@ final class JarFileResourceLoader extends AbstractResourceLoader {
     private final URL rootUrl;
     private final String relativePath;
     private final File fileOfJar;
+    private final String jarURIPrefix;
+    private final CodeSource codeSource;
+    // keyed by signers only; comparing code sources would compare their URLs, which may resolve host names
+    private final ConcurrentHashMap<List<CodeSigner>, CodeSource> signedCodeSources = new ConcurrentHashMap<List<CodeSigner>, CodeSource>();
+    private volatile EntryFilter entryFilter;
 
     JarFileResourceLoader(final String rootName, final JarFile jarFile) {
         this(rootName, jarFile, null);
@@ -72,6 +77,7 @@ final class JarFileResourceLoader extends AbstractResourceLoader {
         this.rootName = rootName;
         final String realPath = relativePath == null ? null : PathUtils.canonicalize(relativePath);
         this.relativePath = realPath;
+        jarURIPrefix = getJarURIPrefix(fileOfJar.toURI());
         try {
             rootUrl = getJarURI(fileOfJar.toURI(), realPath).toURL();
         } catch (URISyntaxException e) {
@@ -79,9 +85,18 @@ final class JarFileResourceLoader extends AbstractResourceLoader {
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException("Invalid root file specified", e);
         }
+        codeSource = new CodeSource(rootUrl, (CodeSigner[]) null);
     }
 
-    private static URI getJarURI(final URI original, final String nestedPath) throws URISyntaxException {
+    static URI getJarURI(final URI original, final String nestedPath) throws URISyntaxException {
+        final String prefix = getJarURIPrefix(original);
+        return new URI("jar", nestedPath == null ? prefix : prefix + nestedPath, null);
+    }
+
+    /**
+     * Get the scheme-specific part of the {@code jar:} URI of a JAR file's root, to which entry names are appended.
+     */
+    static String getJarURIPrefix(final URI original) {
         final StringBuilder b = new StringBuilder();
         b.append("file:");
         assert original.getScheme().equals("file");
@@ -97,17 +112,36 @@ final class JarFileResourceLoader extends AbstractResourceLoader {
             b.append(host);
         }
         b.append(path).append("!/");
-        if (nestedPath != null) {
-            b.append(nestedPath);
+        return b.toString();
+    }
+
+    /**
+     * Get the URL of a JAR entry from the URI prefix of its JAR file.
+     *
+     * @return the URL, or {@code null} if the entry name does not form a valid URL
+     */
+    static URL getJarEntryURL(final String jarURIPrefix, final String entryName) {
+        try {
+            return new URI("jar", jarURIPrefix + entryName, null).toURL();
+        } catch (MalformedURLException e) {
+            // must be invalid...?  (todo: check this out)
+            return null;
+        } catch (URISyntaxException e) {
+            // must be invalid...?  (todo: check this out)
+            return null;
         }
-        return new URI("jar", b.toString(), null);
     }
 
     public String getRootName() {
         return rootName;
     }
 
-    public synchronized ClassSpec getClassSpec(final String fileName) throws IOException {
+    File getFile() {
+        return fileOfJar;
+    }
+
+    public ClassSpec getClassSpec(final String fileName) throws IOException {
+        // JarFile supports concurrent readers; each caller inflates and verifies its own entry stream
         final ClassSpec spec = new ClassSpec();
         final JarEntry entry = getJarEntry(fileName);
         if (entry == null) {
@@ -117,42 +151,50 @@ final class JarFileResourceLoader extends AbstractResourceLoader {
         final long size = entry.getSize();
         final InputStream is = jarFile.getInputStream(entry);
         try {
+            final byte[] bytes;
             if (size == -1) {
                 // size unknown
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                final byte[] buf = new byte[16384];
-                int res;
-                while ((res = is.read(buf)) > 0) {
-                    baos.write(buf, 0, res);
-                }
-                // done
-                baos.close();
-                is.close();
-                spec.setBytes(baos.toByteArray());
-                spec.setCodeSource(new CodeSource(rootUrl, entry.getCodeSigners()));
-                return spec;
+                bytes = ResourceBytes.readAll(is);
             } else if (size <= (long) Integer.MAX_VALUE) {
-                final int castSize = (int) size;
-                byte[] bytes = new byte[castSize];
-                int a = 0, res;
-                while ((res = is.read(bytes, a, castSize - a)) > 0) {
-                    a += res;
-                }
+                bytes = ResourceBytes.read(is, (int) size);
                 // consume remainder so that cert check doesn't fail in case of wonky JARs
                 while (is.read() != -1);
-                // done
-                is.close();
-                spec.setBytes(bytes);
-                spec.setCodeSource(new CodeSource(rootUrl, entry.getCodeSigners()));
-                return spec;
             } else {
                 throw new IOException("Resource is too large to be a valid class file");
             }
+            // done
+            is.close();
+            spec.setBytes(bytes);
+            spec.setCodeSource(getCodeSource(entry.getCodeSigners()));
+            return spec;
         } finally {
             safeClose(is);
         }
     }
 
+    /**
+     * Get the code source for entries with the given signers.  Equal code sources are shared, so that class
+     * loaders can cache protection domains by code source.
+     *
+     * @param signers the entry's code signers, or {@code null} if it is not signed
+     * @return the code source
+     */
+    private CodeSource getCodeSource(final CodeSigner[] signers) {
+        if (signers == null) {
+            return codeSource;
+        }
+        final List<CodeSigner> key = Arrays.asList(signers);
+        CodeSource signedCodeSource = signedCodeSources.get(key);
+        if (signedCodeSource == null) {
+            final CodeSource newCodeSource = new CodeSource(rootUrl, signers);
+            signedCodeSource = signedCodeSources.putIfAbsent(key, newCodeSource);
+            if (signedCodeSource == null) {
+                signedCodeSource = newCodeSource;
+            }
+        }
+        return signedCodeSource;
+    }
+
     private JarEntry getJarEntry(final String fileName) {
         return relativePath == null ? jarFile.getJarEntry(fileName) : jarFile.getJarEntry(relativePath + "/" + fileName);
     }
@@ -191,30 +233,26 @@ final class JarFileResourceLoader extends AbstractResourceLoader {
     }
 
     public Resource getResource(String name) {
-        try {
-            final JarFile jarFile = this.jarFile;
-            if(name.startsWith("/"))
-                name = name.substring(1);
-            final JarEntry entry = getJarEntry(name);
-            if (entry == null) {
-                return null;
-            }
-            String jarFilePath = new File(jarFile.getName()).toURI().toString();
-            return new JarEntryResource(jarFile, entry, getJarURI(new File(jarFile.getName()).toURI(), entry.getName()).toURL());
-        } catch (MalformedURLException e) {
-            // must be invalid...?  (todo: check this out)
-            return null;
-        } catch (URISyntaxException e) {
-            // must be invalid...?  (todo: check this out)
+        if(name.startsWith("/"))
+            name = name.substring(1);
+        final JarEntry entry = getJarEntry(name);
+        if (entry == null) {
             return null;
         }
+        return new JarEntryResource(this, jarFile, entry, jarURIPrefix);
     }
 
     public Collection<String> getPaths() {
         final Collection<String> index = new HashSet<String>();
         index.add("");
         String relativePath = this.relativePath;
-        // First check for an external index
+        // First check for a binary index which is still current
+        final ResourceRootIndex rootIndex = ResourceRootIndex.read(fileOfJar, ResourceLoaders.ENTRY_FILTERS);
+        if (rootIndex != null) {
+            entryFilter = rootIndex.createEntryFilter(relativePath);
+            return rootIndex.getPaths(index, relativePath);
+        }
+        // Next check for an external index
         final JarFile jarFile = this.jarFile;
         final String jarFileName = jarFile.getName();
         final long jarModified = fileOfJar.lastModified();
@@ -238,57 +276,46 @@ final class JarFileResourceLoader extends AbstractResourceLoader {
         }
         // Next just read the JAR
         index.add("");
+        final ResourceRootIndex.Builder builder = new ResourceRootIndex.Builder(fileOfJar);
+        builder.addPath("");
         final Enumeration<JarEntry> entries = jarFile.entries();
         while (entries.hasMoreElements()) {
             final JarEntry jarEntry = entries.nextElement();
-            final String name = jarEntry.getName();
-            final int idx = name.lastIndexOf('/');
-            if (idx == -1) continue;
-            final String path = name.substring(0, idx);
-            if (path.length() == 0 || path.endsWith("/")) {
-                // invalid name, just skip...
-                continue;
-            }
-            if (relativePath == null) {
-                index.add(path);
-            } else {
-                if (path.startsWith(relativePath + "/")) {
-                    index.add(path.substring(relativePath.length() + 1));
-                }
-            }
+            addEntry(builder, jarEntry.getName());
+        }
+        builder.getPaths(index, relativePath);
+        if (ResourceLoaders.ENTRY_FILTERS) {
+            entryFilter = builder.createEntryFilter(relativePath);
         }
-        if (ResourceLoaders.WRITE_INDEXES && relativePath == null) {
+        if (ResourceLoaders.WRITE_INDEXES) {
             // Now try to write it
-            boolean ok = false;
-            try {
-                final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile)));
-                try {
-                    for (String name : index) {
-                        writer.write(name);
-                        writer.write('\n');
-                    }
-                    writer.close();
-                    ok = true;
-                } finally {
-                    try {
-                        writer.close();
-                    } catch (IOException e) {
-                        // ignored
-                    }
-                }
-            } catch (IOException e) {
-                // failed, ignore
-            } finally {
-                if (! ok) {
-                    // well, we tried...
-                    indexFile.delete();
-                }
-            }
+            builder.write();
         }
         return index;
     }
 
-    private static Collection<String> readIndex(final InputStream stream, final Collection<String> index, final String relativePath) throws IOException {
+    EntryFilter getEntryFilter() {
+        return entryFilter;
+    }
+
+    static void addEntry(final ResourceRootIndex.Builder builder, final String name) {
+        final int idx = name.lastIndexOf('/');
+        if (idx == -1) {
+            builder.addEntry("", name);
+            return;
+        }
+        final String path = name.substring(0, idx);
+        if (path.length() == 0 || path.endsWith("/")) {
+            // invalid name, just skip...
+            return;
+        }
+        builder.addPath(path);
+        if (idx < name.length() - 1) {
+            builder.addEntry(path, name.substring(idx + 1));
+        }
+    }
+
+    static Collection<String> readIndex(final InputStream stream, final Collection<String> index, final String relativePath) throws IOException {
         final BufferedReader r = new BufferedReader(new InputStreamReader(stream));
         try {
             String s;
@@ -109,14 +109,14 @@ final class JarModuleLoader extends ModuleLoader {
                     } else {
                         // assume a JAR
                         File root = new File(jarFile.getName(), entry);
-                        JarFile childJarFile;
+                        ResourceLoader childLoader;
                         try {
-                            childJarFile = new JarFile(root, true);
+                            childLoader = ResourceLoaders.createSharedJarResourceLoader(entry, root);
                         } catch (IOException e) {
                             // ignore and continue
                             continue;
                         }
-                        builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(new JarFileResourceLoader(entry, childJarFile)));
+                        builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(childLoader));
                     }
                 }
             }
@@ -55,8 +55,8 @@ final class Linkage {
     Linkage(final Dependency[] sourceList, final State state, final Map<String, List<LocalLoader>> allPaths, final Map<String, List<LocalLoader>> exportedPaths) {
         this.sourceList = sourceList;
         this.state = state;
-        this.allPaths = allPaths;
-        this.exportedPaths = exportedPaths;
+        this.allPaths = PathIndex.of(allPaths);
+        this.exportedPaths = PathIndex.of(exportedPaths);
     }
 
     Map<String, List<LocalLoader>> getAllPaths() {
@@ -123,7 +123,7 @@ public final class LocalModuleLoader extends ModuleLoader {
                 }
             }
         }
-        throw new ModuleNotFoundException("Module " + moduleIdentifier + " is not found in " + this);
+        throw moduleNotFound(moduleIdentifier, this);
     }
 
     private static String toPathString(ModuleIdentifier moduleIdentifier) {
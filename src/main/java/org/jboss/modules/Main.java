@@ -280,6 +280,7 @@ public final class Main {
         } else {
             __JAXPRedirected.changeAll(moduleIdentifier, Module.getBootModuleLoader());
         }
+        BootProfile.start(environmentLoader);
 
         final Module module;
         try {
@@ -0,0 +1,662 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A JAR resource loader which memory-maps the JAR file and reads the ZIP central directory itself, instead of opening
+ * a {@link JarFile}.  Entries are looked up through an off-heap hash index of central directory
+ * offsets, so opening a JAR costs little more than mapping it.  Stored entries are served straight from the mapping;
+ * deflated entries are inflated into arrays of the exact entry size.
+ * <p>
+ * Signed JARs and ZIP64 archives are not supported; {@link #create(String, File)} falls back to a
+ * {@link JarFileResourceLoader} for them.  This loader is opt-in (see
+ * {@link ResourceLoaders#createMappedJarResourceLoader(String, File)}); {@code module.xml} roots use a
+ * {@code JarFile} unless {@code jboss.modules.mapped-jars} is set.
+ * <p>
+ * The mapping is never unmapped explicitly, since class definitions and open streams may still be reading from it;
+ * it is released when this loader and everything read from it have been garbage collected.  Accessing a mapping
+ * whose file was truncated faults the JVM, so the length and modification time of the file are checked before each
+ * access, and once the file has changed all requests go to a {@code JarFile} based loader for the new file instead.
+ * A file which is truncated between the check and the access can still fault, so JARs must be replaced by renaming
+ * a new file over them, never rewritten in place, while they are mapped.
+ */
+final class MappedJarResourceLoader extends AbstractResourceLoader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_SIZE = 30;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private static final Object NO_MANIFEST = new Object();
+
+    private final String rootName;
+    private final File fileOfJar;
+    private final String jarURIPrefix;
+    private final URL rootUrl;
+    private final CodeSource codeSource;
+    private final MappedByteBuffer buffer;
+    /**
+     * The offset of the archive within the file (non-zero for archives with a prefix, like self-extracting ones).
+     */
+    private final int base;
+    private final int centralDirectoryStart;
+    private final int entryCount;
+    /**
+     * Open addressed table of (name hash, central directory offset + 1) pairs; an offset of 0 marks a free slot.
+     */
+    private final IntBuffer index;
+    private final int indexMask;
+    private final long length;
+    private final long lastModified;
+    private volatile Object manifest;
+    private volatile ResourceLoader fallback;
+
+    private MappedJarResourceLoader(final String rootName, final File fileOfJar, final MappedByteBuffer buffer, final long lastModified) throws IOException {
+        this.rootName = rootName;
+        this.fileOfJar = fileOfJar;
+        this.buffer = buffer;
+        this.lastModified = lastModified;
+        length = buffer.capacity();
+        jarURIPrefix = JarFileResourceLoader.getJarURIPrefix(fileOfJar.toURI());
+        try {
+            rootUrl = JarFileResourceLoader.getJarURI(fileOfJar.toURI(), null).toURL();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid root file specified", e);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid root file specified", e);
+        }
+        codeSource = new CodeSource(rootUrl, (CodeSigner[]) null);
+        final int end = findEnd(buffer);
+        if (end == -1) {
+            throw new ZipException("No ZIP end header found in " + fileOfJar);
+        }
+        final int entries = buffer.getShort(end + 10) & 0xffff;
+        final long size = buffer.getInt(end + 12) & 0xffffffffL;
+        final long offset = buffer.getInt(end + 16) & 0xffffffffL;
+        if (entries == 0xffff || size == 0xffffffffL || offset == 0xffffffffL || size > end) {
+            throw new ZipException("ZIP64 archives are not supported: " + fileOfJar);
+        }
+        centralDirectoryStart = (int) (end - size);
+        base = (int) (centralDirectoryStart - offset);
+        if (base < 0) {
+            throw new ZipException("Invalid central directory offset in " + fileOfJar);
+        }
+        entryCount = entries;
+        int tableSize = Integer.highestOneBit(Math.max(entries, 1) * 2 - 1) << 1;
+        index = ByteBuffer.allocateDirect(tableSize * 8).order(ByteOrder.nativeOrder()).asIntBuffer();
+        indexMask = tableSize - 1;
+        int pos = centralDirectoryStart;
+        for (int i = 0; i < entries; i++) {
+            if (pos + CEN_SIZE > end || buffer.getInt(pos) != CEN_SIG) {
+                throw new ZipException("Invalid central directory header in " + fileOfJar);
+            }
+            final int nameLength = buffer.getShort(pos + 28) & 0xffff;
+            if (buffer.getInt(pos + 20) == 0xffffffff || buffer.getInt(pos + 24) == 0xffffffff || buffer.getInt(pos + 42) == 0xffffffff) {
+                throw new ZipException("ZIP64 archives are not supported: " + fileOfJar);
+            }
+            final int hash = hash(buffer, pos + CEN_SIZE, nameLength);
+            int slot = hash & indexMask;
+            while (index.get(slot * 2 + 1) != 0) {
+                slot = (slot + 1) & indexMask;
+            }
+            index.put(slot * 2, hash);
+            index.put(slot * 2 + 1, pos + 1);
+            pos += CEN_SIZE + nameLength + (buffer.getShort(pos + 30) & 0xffff) + (buffer.getShort(pos + 32) & 0xffff);
+        }
+    }
+
+    /**
+     * Create a resource loader for a JAR file, memory-mapping it if possible.  Signed JARs, ZIP64 archives and JARs
+     * too large to map get a {@link JarFileResourceLoader} instead.
+     *
+     * @param rootName the name of the resource root
+     * @param file the JAR file
+     * @return the resource loader
+     * @throws IOException if the JAR file cannot be read
+     */
+    static ResourceLoader create(final String rootName, final File file) throws IOException {
+        // read before mapping, so that a change during the mapping is seen as a change later
+        final long lastModified = file.lastModified();
+        final MappedByteBuffer buffer = map(file);
+        if (buffer != null) try {
+            final MappedJarResourceLoader loader = new MappedJarResourceLoader(rootName, file, buffer, lastModified);
+            if (! loader.isSigned()) {
+                return loader;
+            }
+        } catch (ZipException e) {
+            // not an archive we can read; let JarFile decide
+        }
+        return ResourceLoaders.createSharedJarResourceLoader(rootName, file);
+    }
+
+    private static MappedByteBuffer map(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Get the loader which serves requests instead of the mapping because the file changed since it was mapped.
+     *
+     * @return the loader for the changed file, or {@code null} if the file is unchanged
+     * @throws IOException if the file changed and cannot be opened
+     */
+    private ResourceLoader getFallback() throws IOException {
+        ResourceLoader fallback = this.fallback;
+        if (fallback == null) {
+            if (fileOfJar.length() == length && fileOfJar.lastModified() == lastModified) {
+                return null;
+            }
+            synchronized (this) {
+                fallback = this.fallback;
+                if (fallback == null) {
+                    this.fallback = fallback = ResourceLoaders.createSharedJarResourceLoader(rootName, fileOfJar);
+                }
+            }
+        }
+        return fallback;
+    }
+
+    private static int findEnd(final ByteBuffer buffer) {
+        final int limit = buffer.limit();
+        // the end header is followed by a comment of up to 65535 bytes
+        final int min = Math.max(0, limit - END_SIZE - 0xffff);
+        for (int pos = limit - END_SIZE; pos >= min; pos--) {
+            if (buffer.getInt(pos) == END_SIG && pos + END_SIZE + (buffer.getShort(pos + 20) & 0xffff) == limit) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static int hash(final ByteBuffer buffer, final int pos, final int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + buffer.get(pos + i);
+        }
+        return hash;
+    }
+
+    private static int hash(final byte[] bytes) {
+        int hash = 0;
+        for (byte b : bytes) {
+            hash = hash * 31 + b;
+        }
+        return hash;
+    }
+
+    private boolean isSigned() {
+        int pos = centralDirectoryStart;
+        for (int i = 0; i < entryCount; i++) {
+            final String name = getName(pos);
+            if (name.regionMatches(true, 0, "META-INF/", 0, 9) && name.indexOf('/', 9) == -1) {
+                final String upper = name.toUpperCase();
+                if (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC")) {
+                    return true;
+                }
+            }
+            pos = next(pos);
+        }
+        return false;
+    }
+
+    private int next(final int pos) {
+        return pos + CEN_SIZE + (buffer.getShort(pos + 28) & 0xffff) + (buffer.getShort(pos + 30) & 0xffff) + (buffer.getShort(pos + 32) & 0xffff);
+    }
+
+    private String getName(final int pos) {
+        final int nameLength = buffer.getShort(pos + 28) & 0xffff;
+        final byte[] bytes = new byte[nameLength];
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(pos + CEN_SIZE);
+        duplicate.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Find the central directory header of an entry.
+     *
+     * @param name the entry name
+     * @return the offset of the central directory header, or {@code -1} if there is no such entry
+     */
+    private int find(final String name) {
+        final byte[] bytes = name.getBytes(UTF_8);
+        final int hash = hash(bytes);
+        int slot = hash & indexMask;
+        int pos;
+        while ((pos = index.get(slot * 2 + 1) - 1) != -1) {
+            if (index.get(slot * 2) == hash && nameEquals(pos, bytes)) {
+                return pos;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(final int pos, final byte[] bytes) {
+        if ((buffer.getShort(pos + 28) & 0xffff) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(pos + CEN_SIZE + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getMethod(final int pos) {
+        return buffer.getShort(pos + 10) & 0xffff;
+    }
+
+    private int getCompressedSize(final int pos) {
+        return buffer.getInt(pos + 20);
+    }
+
+    private int getSize(final int pos) {
+        return buffer.getInt(pos + 24);
+    }
+
+    private int getDataStart(final int pos) throws ZipException {
+        final int local = base + buffer.getInt(pos + 42);
+        if (local < 0 || local + LOC_SIZE > buffer.limit() || buffer.getInt(local) != LOC_SIG) {
+            throw new ZipException("Invalid local header in " + fileOfJar);
+        }
+        final int start = local + LOC_SIZE + (buffer.getShort(local + 26) & 0xffff) + (buffer.getShort(local + 28) & 0xffff);
+        if (start < 0 || start + getCompressedSize(pos) > buffer.limit()) {
+            throw new ZipException("Invalid entry data in " + fileOfJar);
+        }
+        return start;
+    }
+
+    /**
+     * Get the data of an entry as it is stored in the archive, without copying it.
+     */
+    private ByteBuffer getData(final int pos) throws ZipException {
+        final int start = getDataStart(pos);
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(start + getCompressedSize(pos));
+        duplicate.position(start);
+        return duplicate.slice();
+    }
+
+    /**
+     * Read the contents of an entry into an array of its exact size.
+     */
+    private byte[] read(final int pos) throws IOException {
+        final int size = getSize(pos);
+        if (size < 0) {
+            throw new IOException("Resource is too large to be a valid class file");
+        }
+        final byte[] bytes = new byte[size];
+        final ByteBuffer data = getData(pos);
+        switch (getMethod(pos)) {
+            case STORED: {
+                if (data.remaining() != size) {
+                    throw new ZipException("Invalid stored entry size in " + fileOfJar);
+                }
+                data.get(bytes);
+                return bytes;
+            }
+            case DEFLATED: {
+                // the inflater needs one extra dummy byte after the compressed data
+                final int compressedSize = data.remaining();
+                final byte[] compressed = ResourceBytes.getScratch(compressedSize + 1);
+                data.get(compressed, 0, compressedSize);
+                compressed[compressedSize] = 0;
+                final Inflater inflater = ResourceBytes.getInflater();
+                try {
+                    inflater.setInput(compressed, 0, compressedSize + 1);
+                    int offset = 0;
+                    while (offset < size) {
+                        final int count = inflater.inflate(bytes, offset, size - offset);
+                        if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new ZipException("Truncated entry data in " + fileOfJar);
+                        }
+                        offset += count;
+                    }
+                    return bytes;
+                } catch (DataFormatException e) {
+                    final ZipException ze = new ZipException("Invalid entry data in " + fileOfJar);
+                    ze.initCause(e);
+                    throw ze;
+                } finally {
+                    ResourceBytes.releaseInflater(inflater);
+                }
+            }
+            default: {
+                throw new ZipException("Unsupported compression method " + getMethod(pos) + " in " + fileOfJar);
+            }
+        }
+    }
+
+    private InputStream openStream(final int pos) throws IOException {
+        final ByteBuffer data = getData(pos);
+        switch (getMethod(pos)) {
+            case STORED: return new ByteBufferInputStream(this, data);
+            case DEFLATED: return new EntryInflaterInputStream(new ByteBufferInputStream(this, data), getSize(pos));
+            default: throw new ZipException("Unsupported compression method " + getMethod(pos) + " in " + fileOfJar);
+        }
+    }
+
+    public String getRootName() {
+        return rootName;
+    }
+
+    File getFile() {
+        return fileOfJar;
+    }
+
+    public ClassSpec getClassSpec(final String fileName) throws IOException {
+        final ResourceLoader fallback = getFallback();
+        if (fallback != null) {
+            return fallback.getClassSpec(fileName);
+        }
+        final int pos = find(fileName);
+        if (pos == -1) {
+            // no such entry
+            return null;
+        }
+        final ClassSpec spec = new ClassSpec();
+        if (getMethod(pos) == STORED && getCompressedSize(pos) == getSize(pos)) {
+            // define straight from the mapping
+            spec.setByteBuffer(getData(pos).asReadOnlyBuffer());
+        } else {
+            spec.setBytes(read(pos));
+        }
+        spec.setCodeSource(codeSource);
+        return spec;
+    }
+
+    public PackageSpec getPackageSpec(final String name) throws IOException {
+        final ResourceLoader fallback = getFallback();
+        if (fallback != null) {
+            return fallback.getPackageSpec(name);
+        }
+        return getPackageSpec(name, getManifest(), rootUrl);
+    }
+
+    private Manifest getManifest() throws IOException {
+        Object manifest = this.manifest;
+        if (manifest == null) {
+            final int pos = find("META-INF/MANIFEST.MF");
+            if (pos == -1) {
+                manifest = NO_MANIFEST;
+            } else {
+                final InputStream is = openStream(pos);
+                try {
+                    manifest = new Manifest(is);
+                } finally {
+                    is.close();
+                }
+            }
+            this.manifest = manifest;
+        }
+        return manifest == NO_MANIFEST ? null : (Manifest) manifest;
+    }
+
+    public String getLibrary(final String name) {
+        // JARs cannot have libraries in them
+        return null;
+    }
+
+    public Resource getResource(String name) {
+        try {
+            final ResourceLoader fallback = getFallback();
+            if (fallback != null) {
+                return fallback.getResource(name);
+            }
+        } catch (IOException e) {
+            // the file changed and is no longer readable
+            return null;
+        }
+        if (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        int pos = find(name);
+        if (pos == -1 && ! name.endsWith("/")) {
+            // directory entries can be found without their trailing slash
+            pos = find(name + "/");
+        }
+        if (pos == -1) {
+            return null;
+        }
+        return new EntryResource(this, pos, getName(pos));
+    }
+
+    public Collection<String> getPaths() {
+        try {
+            final ResourceLoader fallback = getFallback();
+            if (fallback != null) {
+                return fallback.getPaths();
+            }
+        } catch (IOException e) {
+            // the file changed and is no longer readable
+            return Collections.singleton("");
+        }
+        final Collection<String> index = new HashSet<String>();
+        index.add("");
+        // check for a binary index which is still current
+        final ResourceRootIndex rootIndex = ResourceRootIndex.read(fileOfJar, false);
+        if (rootIndex != null) {
+            return rootIndex.getPaths(index, null);
+        }
+        // check for an internal index
+        final int listPos = find("META-INF/PATHS.LIST");
+        if (listPos != -1) {
+            try {
+                return JarFileResourceLoader.readIndex(openStream(listPos), index, null);
+            } catch (IOException e) {
+                index.clear();
+                index.add("");
+            }
+        }
+        final ResourceRootIndex.Builder builder = new ResourceRootIndex.Builder(fileOfJar);
+        builder.addPath("");
+        int pos = centralDirectoryStart;
+        for (int i = 0; i < entryCount; i++) {
+            JarFileResourceLoader.addEntry(builder, getName(pos));
+            pos = next(pos);
+        }
+        builder.getPaths(index, null);
+        if (ResourceLoaders.WRITE_INDEXES) {
+            builder.write();
+        }
+        return index;
+    }
+
+    static final class EntryResource implements Resource {
+        private final MappedJarResourceLoader loader;
+        private final int pos;
+        private final String name;
+        private volatile URL url;
+
+        EntryResource(final MappedJarResourceLoader loader, final int pos, final String name) {
+            this.loader = loader;
+            this.pos = pos;
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public URL getURL() {
+            URL url = this.url;
+            if (url == null) {
+                this.url = url = JarFileResourceLoader.getJarEntryURL(loader.jarURIPrefix, name);
+            }
+            return url;
+        }
+
+        public InputStream openStream() throws IOException {
+            final ResourceLoader fallback = loader.getFallback();
+            if (fallback != null) {
+                final Resource resource = fallback.getResource(name);
+                if (resource == null) {
+                    throw new IOException("Resource " + name + " was removed from " + loader.fileOfJar);
+                }
+                return resource.openStream();
+            }
+            return loader.openStream(pos);
+        }
+
+        public long getSize() {
+            return loader.getSize(pos) & 0xffffffffL;
+        }
+    }
+
+    static final class ByteBufferInputStream extends InputStream {
+        private final MappedJarResourceLoader loader;
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final MappedJarResourceLoader loader, final ByteBuffer buffer) {
+            this.loader = loader;
+            this.buffer = buffer;
+        }
+
+        private void checkFile() throws IOException {
+            if (loader.getFallback() != null) {
+                throw new IOException("JAR file " + loader.fileOfJar + " changed while an entry was being read");
+            }
+        }
+
+        public int read() throws IOException {
+            if (! buffer.hasRemaining()) {
+                return -1;
+            }
+            if ((buffer.position() & 0xfff) == 0) {
+                // checking every byte would cost two file system calls per byte
+                checkFile();
+            }
+            return buffer.get() & 0xff;
+        }
+
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            checkFile();
+            final int remaining = buffer.remaining();
+            if (remaining == 0) {
+                return -1;
+            }
+            final int count = Math.min(len, remaining);
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    static final class EntryInflaterInputStream extends InflaterInputStream {
+        private final int size;
+        private boolean eof;
+        private boolean closed;
+
+        EntryInflaterInputStream(final InputStream in, final int size) {
+            super(in, new Inflater(true), Math.max(64, Math.min(8192, size)));
+            this.size = size;
+        }
+
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new ZipException("Unexpected end of entry data");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // the inflater needs one extra dummy byte after the compressed data
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        public int available() throws IOException {
+            if (closed) {
+                return 0;
+            }
+            final long available = (size & 0xffffffffL) - inf.getBytesWritten();
+            return available > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) available;
+        }
+
+        public void close() throws IOException {
+            if (! closed) {
+                closed = true;
+                super.close();
+                inf.end();
+            }
+        }
+    }
+}
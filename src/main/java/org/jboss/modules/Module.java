@@ -23,6 +23,7 @@
 package org.jboss.modules;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -31,15 +32,20 @@ import java.net.URLConnection;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.jboss.modules.filter.ClassFilter;
@@ -101,14 +107,14 @@ public final class Module {
                 }
             } while (nc != -1);
         }
-        systemPackages = list.toArray(list.toArray(new String[list.size()]));
+        systemPackages = new PrefixMatcher(list.toArray(new String[list.size()]));
         final ListIterator<String> iterator = list.listIterator();
         // http://youtrack.jetbrains.net/issue/IDEA-72097
         //noinspection WhileLoopReplaceableByForEach
         while (iterator.hasNext()) {
             iterator.set(iterator.next().replace('.', '/'));
         }
-        systemPaths = list.toArray(list.toArray(new String[list.size()]));
+        systemPaths = new PrefixMatcher(list.toArray(new String[list.size()]));
 
         AccessController.doPrivileged(new PrivilegedAction<Void>() {
             public Void run() {
@@ -132,8 +138,14 @@ public final class Module {
 
     // static properties
 
-    static final String[] systemPackages;
-    static final String[] systemPaths;
+    /**
+     * The prefixes of class and package names which are always loaded from the system class loader.
+     */
+    static final PrefixMatcher systemPackages;
+    /**
+     * The prefixes of resource paths which are always loaded from the system class loader.
+     */
+    static final PrefixMatcher systemPaths;
 
     /**
      * The system-wide module logger, which may be changed via {@link #setModuleLogger(org.jboss.modules.log.ModuleLogger)}.
@@ -181,6 +193,22 @@ public final class Module {
      * The linkage state.
      */
     private volatile Linkage linkage = Linkage.NONE;
+    /**
+     * The modules which visited this module when they were last linked.
+     */
+    private final Set<Module> dependents = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Module, Boolean>()));
+    /**
+     * The shared linkage the current linkage was built from, if any (guarded by {@code this}).
+     */
+    private SharedLinkage sharedLinkage;
+    /**
+     * The names of classes which could not be found in the complete view of this module.
+     */
+    private volatile NegativeClassCache negativeClassCache;
+    /**
+     * The names of classes which could not be found in the exported view of this module.
+     */
+    private volatile NegativeClassCache exportedNegativeClassCache;
 
     // private constants
 
@@ -509,14 +537,20 @@ public final class Module {
      * @return the class
      */
     Class<?> loadModuleClass(final String className, final boolean exportsOnly, final boolean resolve) {
-        for (String s : systemPackages) {
-            if (className.startsWith(s)) {
-                try {
-                    return moduleClassLoader.loadClass(className, resolve);
-                } catch (ClassNotFoundException e) {
-                    return null;
-                }
+        if (systemPackages.matches(className)) {
+            try {
+                return moduleClassLoader.loadClass(className, resolve);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+        final NegativeClassCache negativeClassCache = getNegativeClassCache(exportsOnly);
+        if (negativeClassCache != null) {
+            if (negativeClassCache.contains(className)) {
+                moduleLoader.incNegativeClassCacheHitCount();
+                return null;
             }
+            moduleLoader.incNegativeClassCacheMissCount();
         }
         final String path = pathOfClass(className);
         final Map<String, List<LocalLoader>> paths = getPathsUnchecked(exportsOnly);
@@ -532,11 +566,35 @@ public final class Module {
         }
         final LocalLoader fallbackLoader = this.fallbackLoader;
         if (fallbackLoader != null) {
+            // the fallback loader may find classes later on (e.g. dynamic imports), so never cache its misses
             return fallbackLoader.loadClassLocal(className, resolve);
         }
+        if (negativeClassCache != null) {
+            negativeClassCache.add(className);
+        }
         return null;
     }
 
+    /**
+     * Get the negative class cache for the given view of this module, replacing it if the linkage generation
+     * has changed since it was created.
+     *
+     * @param exportsOnly {@code true} for the exported view, {@code false} for the complete view
+     * @return the cache, or {@code null} if negative class caching is disabled
+     */
+    private NegativeClassCache getNegativeClassCache(final boolean exportsOnly) {
+        final NegativeClassCache oldCache = exportsOnly ? exportedNegativeClassCache : negativeClassCache;
+        final NegativeClassCache cache = NegativeClassCache.current(oldCache);
+        if (cache != oldCache) {
+            if (exportsOnly) {
+                exportedNegativeClassCache = cache;
+            } else {
+                negativeClassCache = cache;
+            }
+        }
+        return cache;
+    }
+
     /**
      * Load a resource from a local loader.
      *
@@ -546,10 +604,8 @@ public final class Module {
      */
     URL getResource(final String name, final boolean exportsOnly) {
         final String canonPath = PathUtils.canonicalize(name);
-        for (String s : Module.systemPaths) {
-            if (canonPath.startsWith(s)) {
-                return moduleClassLoader.getResource(canonPath);
-            }
+        if (systemPaths.matches(canonPath)) {
+            return moduleClassLoader.getResource(canonPath);
         }
 //        log.trace("Attempting to find resource %s in %s", canonPath, this);
         final String path = pathOf(canonPath);
@@ -573,6 +629,40 @@ public final class Module {
         return null;
     }
 
+    /**
+     * Open a resource from a local loader, without building its URL.
+     *
+     * @param name the resource name
+     * @param exportsOnly {@code true} to only consider exported resources
+     * @return the resource stream, or {@code null} if not found
+     * @throws IOException if the resource could not be opened
+     */
+    InputStream getResourceAsStream(final String name, final boolean exportsOnly) throws IOException {
+        final String canonPath = PathUtils.canonicalize(name);
+        if (systemPaths.matches(canonPath)) {
+            return moduleClassLoader.getResourceAsStream(canonPath);
+        }
+        final String path = pathOf(canonPath);
+        final Map<String, List<LocalLoader>> paths = getPathsUnchecked(exportsOnly);
+        final List<LocalLoader> loaders = paths.get(path);
+        if (loaders != null) {
+            for (LocalLoader loader : loaders) {
+                final List<Resource> resourceList = loader.loadResourceLocal(canonPath);
+                for (Resource resource : resourceList) {
+                    return resource.openStream();
+                }
+            }
+        }
+        final LocalLoader fallbackLoader = this.fallbackLoader;
+        if (fallbackLoader != null) {
+            final List<Resource> resourceList = fallbackLoader.loadResourceLocal(canonPath);
+            for (Resource resource : resourceList) {
+                return resource.openStream();
+            }
+        }
+        return null;
+    }
+
     /**
      * Load all resources of a given name from a local loader.
      *
@@ -582,13 +672,11 @@ public final class Module {
      */
     Enumeration<URL> getResources(final String name, final boolean exportsOnly) {
         final String canonPath = PathUtils.canonicalize(name);
-        for (String s : Module.systemPaths) {
-            if (canonPath.startsWith(s)) {
-                try {
-                    return moduleClassLoader.getResources(canonPath);
-                } catch (IOException e) {
-                    return ConcurrentClassLoader.EMPTY_ENUMERATION;
-                }
+        if (systemPaths.matches(canonPath)) {
+            try {
+                return moduleClassLoader.getResources(canonPath);
+            } catch (IOException e) {
+                return ConcurrentClassLoader.EMPTY_ENUMERATION;
             }
         }
 //        log.trace("Attempting to find all resources %s in %s", canonPath, this);
@@ -835,7 +923,47 @@ public final class Module {
         }
     }
 
-    long addPaths(Dependency[] dependencies, Map<String, List<LocalLoader>> map, FastCopyHashSet<PathFilter> filterStack, FastCopyHashSet<ClassFilter> classFilterStack, final FastCopyHashSet<PathFilter> resourceFilterStack, Set<Visited> visited) throws ModuleLoadException {
+    /**
+     * Get the paths which a link walk has to process for a dependency.
+     *
+     * @param paths the paths of the dependency
+     * @param onlyPaths the paths being relinked, or {@code null} to process all paths
+     * @return the paths to process
+     */
+    private static Collection<String> pathsToScan(final Set<String> paths, final Set<String> onlyPaths) {
+        if (onlyPaths == null) {
+            return paths;
+        }
+        final ArrayList<String> list = new ArrayList<String>();
+        for (String path : onlyPaths) {
+            if (paths.contains(path)) {
+                list.add(path);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Determine whether a filter stack accepts at least one of the given paths.
+     *
+     * @param filterStack the filter stack
+     * @param paths the paths
+     * @return {@code true} if some path is accepted by every filter of the stack
+     */
+    private static boolean acceptsAny(final FastCopyHashSet<PathFilter> filterStack, final Set<String> paths) {
+        final Object[] filters = filterStack.getRawArray();
+        next: for (String path : paths) {
+            for (Object filter : filters) {
+                if (filter != null && ! ((PathFilter) filter).accept(path)) {
+                    continue next;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    long addPaths(Dependency[] dependencies, Map<String, List<LocalLoader>> map, FastCopyHashSet<PathFilter> filterStack, FastCopyHashSet<ClassFilter> classFilterStack, final FastCopyHashSet<PathFilter> resourceFilterStack, Set<Visited> visited, final Set<String> onlyPaths) throws ModuleLoadException {
         long subtract = 0L;
         moduleLoader.incScanCount();
         for (Dependency dependency : dependencies) {
@@ -890,31 +1018,22 @@ public final class Module {
                     nestedResourceFilters = resourceFilterStack.clone();
                     if (resourceImportFilter != PathFilters.acceptAll()) nestedResourceFilters.add(resourceImportFilter);
                 }
-                subtract += module.addExportedPaths(module.getDependencies(), map, nestedFilters, nestedClassFilters, nestedResourceFilters, visited);
+                if (onlyPaths != null && ! acceptsAny(nestedFilters, onlyPaths)) {
+                    // nothing below this dependency can contribute any of the relinked paths
+                    continue;
+                }
+                subtract += module.addExportedPaths(module.getDependencies(), map, nestedFilters, nestedClassFilters, nestedResourceFilters, visited, onlyPaths);
             } else if (dependency instanceof ModuleClassLoaderDependency) {
                 final ModuleClassLoaderDependency classLoaderDependency = (ModuleClassLoaderDependency) dependency;
-                LocalLoader localLoader = classLoaderDependency.getLocalLoader();
-                for (Object filter : classFilterStack.getRawArray()) {
-                    if (filter != null && filter != ClassFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createClassFilteredLocalLoader((ClassFilter) filter, localLoader);
-                    }
-                }
-                for (Object filter : resourceFilterStack.getRawArray()) {
-                    if (filter != null && filter != PathFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createPathFilteredLocalLoader((PathFilter) filter, localLoader);
-                    }
-                }
-                ClassFilter classFilter = classLoaderDependency.getClassImportFilter();
-                if (classFilter != ClassFilters.acceptAll()) {
-                    localLoader = LocalLoaders.createClassFilteredLocalLoader(classFilter, localLoader);
-                }
-                PathFilter resourceFilter = classLoaderDependency.getResourceImportFilter();
-                if (resourceFilter != PathFilters.acceptAll()) {
-                    localLoader = LocalLoaders.createPathFilteredLocalLoader(resourceFilter, localLoader);
+                final LocalLoader localLoader = FilteredLocalLoader.create(classLoaderDependency.getLocalLoader(), classFilterStack.getRawArray(), resourceFilterStack.getRawArray(),
+                        classLoaderDependency.getClassImportFilter(), ClassFilters.acceptAll(), classLoaderDependency.getResourceImportFilter(), PathFilters.acceptAll());
+                if (localLoader == null) {
+                    // rejects everything, so nothing to link
+                    continue;
                 }
                 final PathFilter importFilter = classLoaderDependency.getImportFilter();
                 final Set<String> paths = classLoaderDependency.getPaths();
-                for (String path : paths) {
+                for (String path : pathsToScan(paths, onlyPaths)) {
                     if (importFilter.accept(path)) {
                         List<LocalLoader> list = map.get(path);
                         if (list == null) {
@@ -927,28 +1046,15 @@ public final class Module {
                 }
             } else if (dependency instanceof LocalDependency) {
                 final LocalDependency localDependency = (LocalDependency) dependency;
-                LocalLoader localLoader = localDependency.getLocalLoader();
-                for (Object filter : classFilterStack.getRawArray()) {
-                    if (filter != null && filter != ClassFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createClassFilteredLocalLoader((ClassFilter) filter, localLoader);
-                    }
-                }
-                for (Object filter : resourceFilterStack.getRawArray()) {
-                    if (filter != null && filter != PathFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createPathFilteredLocalLoader((PathFilter) filter, localLoader);
-                    }
-                }
-                final ClassFilter classFilter = localDependency.getClassImportFilter();
-                if (classFilter != ClassFilters.acceptAll()) {
-                    localLoader = LocalLoaders.createClassFilteredLocalLoader(classFilter, localLoader);
-                }
-                final PathFilter resourceFilter = localDependency.getResourceImportFilter();
-                if (resourceFilter != PathFilters.acceptAll()) {
-                    localLoader = LocalLoaders.createPathFilteredLocalLoader(resourceFilter, localLoader);
+                final LocalLoader localLoader = FilteredLocalLoader.create(localDependency.getLocalLoader(), classFilterStack.getRawArray(), resourceFilterStack.getRawArray(),
+                        localDependency.getClassImportFilter(), ClassFilters.acceptAll(), localDependency.getResourceImportFilter(), PathFilters.acceptAll());
+                if (localLoader == null) {
+                    // rejects everything, so nothing to link
+                    continue;
                 }
                 final PathFilter importFilter = localDependency.getImportFilter();
                 final Set<String> paths = localDependency.getPaths();
-                for (String path : paths) {
+                for (String path : pathsToScan(paths, onlyPaths)) {
                     if (importFilter.accept(path)) {
                         List<LocalLoader> list = map.get(path);
                         if (list == null) {
@@ -965,7 +1071,7 @@ public final class Module {
         return subtract;
     }
 
-    long addExportedPaths(Dependency[] dependencies, Map<String, List<LocalLoader>> map, FastCopyHashSet<PathFilter> filterStack, FastCopyHashSet<ClassFilter> classFilterStack, final FastCopyHashSet<PathFilter> resourceFilterStack, Set<Visited> visited) throws ModuleLoadException {
+    long addExportedPaths(Dependency[] dependencies, Map<String, List<LocalLoader>> map, FastCopyHashSet<PathFilter> filterStack, FastCopyHashSet<ClassFilter> classFilterStack, final FastCopyHashSet<PathFilter> resourceFilterStack, Set<Visited> visited, final Set<String> onlyPaths) throws ModuleLoadException {
         if (!visited.add(new Visited(this, filterStack, classFilterStack, resourceFilterStack))) {
             return 0L;
         }
@@ -1031,39 +1137,22 @@ public final class Module {
                         if (resourceImportFilter != PathFilters.acceptAll()) nestedResourceFilters.add(resourceImportFilter);
                         if (resourceExportFilter != PathFilters.acceptAll()) nestedResourceFilters.add(resourceExportFilter);
                     }
-                    subtract += module.addExportedPaths(module.getDependencies(), map, nestedFilters, nestedClassFilters, nestedResourceFilters, visited);
+                    if (onlyPaths != null && ! acceptsAny(nestedFilters, onlyPaths)) {
+                        // nothing below this dependency can contribute any of the relinked paths
+                        continue;
+                    }
+                    subtract += module.addExportedPaths(module.getDependencies(), map, nestedFilters, nestedClassFilters, nestedResourceFilters, visited, onlyPaths);
                 } else if (dependency instanceof ModuleClassLoaderDependency) {
                     final ModuleClassLoaderDependency classLoaderDependency = (ModuleClassLoaderDependency) dependency;
-                    LocalLoader localLoader = classLoaderDependency.getLocalLoader();
-                    for (Object filter : classFilterStack.getRawArray()) {
-                        if (filter != null && filter != ClassFilters.acceptAll()) {
-                            localLoader = LocalLoaders.createClassFilteredLocalLoader((ClassFilter) filter, localLoader);
-                        }
-                    }
-                    for (Object filter : resourceFilterStack.getRawArray()) {
-                        if (filter != null && filter != PathFilters.acceptAll()) {
-                            localLoader = LocalLoaders.createPathFilteredLocalLoader((PathFilter) filter, localLoader);
-                        }
-                    }
-                    ClassFilter classImportFilter = classLoaderDependency.getClassImportFilter();
-                    if (classImportFilter != ClassFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createClassFilteredLocalLoader(classImportFilter, localLoader);
-                    }
-                    ClassFilter classExportFilter = classLoaderDependency.getClassExportFilter();
-                    if (classExportFilter != ClassFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createClassFilteredLocalLoader(classExportFilter, localLoader);
-                    }
-                    PathFilter resourceImportFilter = classLoaderDependency.getResourceImportFilter();
-                    if (resourceImportFilter != PathFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createPathFilteredLocalLoader(resourceImportFilter, localLoader);
-                    }
-                    PathFilter resourceExportFilter = classLoaderDependency.getResourceExportFilter();
-                    if (resourceExportFilter != PathFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createPathFilteredLocalLoader(resourceExportFilter, localLoader);
+                    final LocalLoader localLoader = FilteredLocalLoader.create(classLoaderDependency.getLocalLoader(), classFilterStack.getRawArray(), resourceFilterStack.getRawArray(),
+                            classLoaderDependency.getClassImportFilter(), classLoaderDependency.getClassExportFilter(), classLoaderDependency.getResourceImportFilter(), classLoaderDependency.getResourceExportFilter());
+                    if (localLoader == null) {
+                        // rejects everything, so nothing to link
+                        continue;
                     }
                     final PathFilter importFilter = classLoaderDependency.getImportFilter();
                     final Set<String> paths = classLoaderDependency.getPaths();
-                    for (String path : paths) {
+                    for (String path : pathsToScan(paths, onlyPaths)) {
                         boolean accept = true;
                         for (Object filter : filterStack.getRawArray()) {
                             if (filter != null && ! ((PathFilter)filter).accept(path)) {
@@ -1082,35 +1171,14 @@ public final class Module {
                     }
                 } else if (dependency instanceof LocalDependency) {
                     final LocalDependency localDependency = (LocalDependency) dependency;
-                    LocalLoader localLoader = localDependency.getLocalLoader();
-                    for (Object filter : classFilterStack.getRawArray()) {
-                        if (filter != null && filter != ClassFilters.acceptAll()) {
-                            localLoader = LocalLoaders.createClassFilteredLocalLoader((ClassFilter) filter, localLoader);
-                        }
-                    }
-                    for (Object filter : resourceFilterStack.getRawArray()) {
-                        if (filter != null && filter != PathFilters.acceptAll()) {
-                            localLoader = LocalLoaders.createPathFilteredLocalLoader((PathFilter) filter, localLoader);
-                        }
-                    }
-                    ClassFilter classFilter = localDependency.getClassExportFilter();
-                    if (classFilter != ClassFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createClassFilteredLocalLoader(classFilter, localLoader);
-                    }
-                    classFilter = localDependency.getClassImportFilter();
-                    if (classFilter != ClassFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createClassFilteredLocalLoader(classFilter, localLoader);
-                    }
-                    PathFilter resourceFilter = localDependency.getResourceExportFilter();
-                    if (resourceFilter != PathFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createPathFilteredLocalLoader(resourceFilter, localLoader);
-                    }
-                    resourceFilter = localDependency.getResourceImportFilter();
-                    if (resourceFilter != PathFilters.acceptAll()) {
-                        localLoader = LocalLoaders.createPathFilteredLocalLoader(resourceFilter, localLoader);
+                    final LocalLoader localLoader = FilteredLocalLoader.create(localDependency.getLocalLoader(), classFilterStack.getRawArray(), resourceFilterStack.getRawArray(),
+                            localDependency.getClassImportFilter(), localDependency.getClassExportFilter(), localDependency.getResourceImportFilter(), localDependency.getResourceExportFilter());
+                    if (localLoader == null) {
+                        // rejects everything, so nothing to link
+                        continue;
                     }
                     final Set<String> paths = localDependency.getPaths();
-                    for (String path : paths) {
+                    for (String path : pathsToScan(paths, onlyPaths)) {
                         boolean accept = true;
                         for (Object filter : filterStack.getRawArray()) {
                             if (filter != null && ! ((PathFilter)filter).accept(path)) {
@@ -1192,31 +1260,158 @@ public final class Module {
         }
     }
 
-    void link(final Linkage linkage) throws ModuleLoadException {
-        final HashMap<String, List<LocalLoader>> importsMap = new HashMap<String, List<LocalLoader>>();
-        final HashMap<String, List<LocalLoader>> exportsMap = new HashMap<String, List<LocalLoader>>();
+    /**
+     * Link this module against the dependencies of the given linkage, and install the result if the given linkage is
+     * still current.
+     *
+     * @param linkage the linkage to link
+     * @return {@code true} if the result was installed, {@code false} if the linkage was changed in the meantime
+     * @throws ModuleLoadException if linking failed
+     */
+    boolean link(final Linkage linkage) throws ModuleLoadException {
         final Dependency[] dependencies = linkage.getSourceList();
         final long start = Metrics.getCurrentCPUTime();
         long subtractTime = 0L;
+        SharedLinkage sharedLinkage = null;
         try {
-            final Set<Visited> visited = new FastCopyHashSet<Visited>(16);
-            final FastCopyHashSet<PathFilter> filterStack = new FastCopyHashSet<PathFilter>(8);
-            final FastCopyHashSet<ClassFilter> classFilterStack = EMPTY_CLASS_FILTERS;
-            final FastCopyHashSet<PathFilter> resourceFilterStack = EMPTY_PATH_FILTERS;
-            subtractTime += addPaths(dependencies, importsMap, filterStack, classFilterStack, resourceFilterStack, visited);
-            subtractTime += addExportedPaths(dependencies, exportsMap, filterStack, classFilterStack, resourceFilterStack, visited);
+            if (ParallelPreloader.ENABLED) {
+                final long preloadStart = Metrics.getCurrentCPUTime();
+                try {
+                    ParallelPreloader.preload(dependencies);
+                } finally {
+                    subtractTime += Metrics.getCurrentCPUTime() - preloadStart;
+                }
+            }
+            final int shareableCount = SharedLinkage.ENABLED ? SharedLinkage.getShareableCount(this, dependencies) : -1;
+            if (shareableCount > 0) {
+                final SharedLinkage.Key key = new SharedLinkage.Key(dependencies, shareableCount);
+                sharedLinkage = moduleLoader.acquireSharedLinkage(key, this);
+                if (sharedLinkage == null) {
+                    final int generation = SharedLinkage.currentGeneration();
+                    final HashMap<String, List<LocalLoader>> importsMap = new HashMap<String, List<LocalLoader>>();
+                    final HashMap<String, List<LocalLoader>> exportsMap = new HashMap<String, List<LocalLoader>>();
+                    final Dependency[] sharedDependencies = Arrays.copyOf(dependencies, shareableCount);
+                    final Set<Visited> visited = new FastCopyHashSet<Visited>(16);
+                    final FastCopyHashSet<PathFilter> filterStack = new FastCopyHashSet<PathFilter>(8);
+                    subtractTime += addPaths(sharedDependencies, importsMap, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, null);
+                    subtractTime += addExportedPaths(sharedDependencies, exportsMap, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, null);
+                    final Set<Module> visitedModules = Collections.newSetFromMap(new IdentityHashMap<Module, Boolean>());
+                    boolean cyclic = false;
+                    for (Visited v : visited) {
+                        // the only visit of this module in an acyclic walk is the start of the export walk
+                        if (v.module == this && (! v.filters.isEmpty() || ! v.classFilters.isEmpty() || ! v.resourceFilters.isEmpty())) {
+                            cyclic = true;
+                        } else if (v.module != this) {
+                            visitedModules.add(v.module);
+                        }
+                    }
+                    if (! cyclic) {
+                        // the walk result does not depend on which module did the walk, so it is shared
+                        sharedLinkage = moduleLoader.addSharedLinkage(new SharedLinkage(key, generation, importsMap, exportsMap, visitedModules.toArray(new Module[visitedModules.size()])));
+                    }
+                    // else our own exports are part of the result, so link the usual way
+                }
+            }
+            final Map<String, List<LocalLoader>> importsMap;
+            final Map<String, List<LocalLoader>> exportsMap;
+            if (sharedLinkage != null) {
+                for (Module module : sharedLinkage.getVisitedModules()) {
+                    module.dependents.add(this);
+                }
+                // merge our own local dependencies into copies of the shared maps, if there are any
+                final Dependency[] localDependencies = Arrays.copyOfRange(dependencies, shareableCount, dependencies.length);
+                final HashMap<String, List<LocalLoader>> localImportsMap = new HashMap<String, List<LocalLoader>>();
+                final HashMap<String, List<LocalLoader>> localExportsMap = new HashMap<String, List<LocalLoader>>();
+                final Set<Visited> visited = new FastCopyHashSet<Visited>(4);
+                final FastCopyHashSet<PathFilter> filterStack = new FastCopyHashSet<PathFilter>(8);
+                subtractTime += addPaths(localDependencies, localImportsMap, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, null);
+                subtractTime += addExportedPaths(localDependencies, localExportsMap, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, null);
+                importsMap = mergePaths(sharedLinkage.getImportedPaths(), localImportsMap);
+                exportsMap = mergePaths(sharedLinkage.getExportedPaths(), localExportsMap);
+            } else {
+                final HashMap<String, List<LocalLoader>> allImportsMap = new HashMap<String, List<LocalLoader>>();
+                final HashMap<String, List<LocalLoader>> allExportsMap = new HashMap<String, List<LocalLoader>>();
+                final Set<Visited> visited = new FastCopyHashSet<Visited>(16);
+                final FastCopyHashSet<PathFilter> filterStack = new FastCopyHashSet<PathFilter>(8);
+                subtractTime += addPaths(dependencies, allImportsMap, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, null);
+                subtractTime += addExportedPaths(dependencies, allExportsMap, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, null);
+                registerDependent(visited);
+                importsMap = allImportsMap;
+                exportsMap = allExportsMap;
+            }
+            SharedLinkage oldSharedLinkage = null;
+            boolean installed = false;
             synchronized (this) {
                 if (this.linkage == linkage) {
                     this.linkage = new Linkage(linkage.getSourceList(), Linkage.State.LINKED, importsMap, exportsMap);
+                    oldSharedLinkage = this.sharedLinkage;
+                    this.sharedLinkage = sharedLinkage;
+                    sharedLinkage = null;
+                    // misses cached against the old linkage must not survive it
+                    NegativeClassCache.invalidateAll();
                     notifyAll();
+                    installed = true;
                 }
                 // else all our efforts were just wasted since someone changed the deps in the meantime
             }
+            if (oldSharedLinkage != null) {
+                moduleLoader.releaseSharedLinkage(oldSharedLinkage);
+            }
+            return installed;
         } finally {
+            if (sharedLinkage != null) {
+                moduleLoader.releaseSharedLinkage(sharedLinkage);
+            }
             moduleLoader.addLinkTime(Metrics.getCurrentCPUTime() - start - subtractTime);
         }
     }
 
+    /**
+     * Merge the paths of local dependencies into a copy of a shared path map.  Shared loader lists are copied before
+     * they are added to, so the shared map is never modified.  Without local paths the shared map itself is returned,
+     * so that every module without local additions uses the same immutable map.
+     *
+     * @param sharedMap the shared path map
+     * @param localMap the paths of the local dependencies
+     * @return the merged map
+     */
+    private static Map<String, List<LocalLoader>> mergePaths(final Map<String, List<LocalLoader>> sharedMap, final Map<String, List<LocalLoader>> localMap) {
+        if (localMap.isEmpty()) {
+            return sharedMap;
+        }
+        final HashMap<String, List<LocalLoader>> map = new HashMap<String, List<LocalLoader>>(sharedMap);
+        for (Map.Entry<String, List<LocalLoader>> entry : localMap.entrySet()) {
+            final List<LocalLoader> sharedList = map.get(entry.getKey());
+            if (sharedList == null) {
+                map.put(entry.getKey(), entry.getValue());
+            } else {
+                final List<LocalLoader> list = new ArrayList<LocalLoader>(sharedList.size() + entry.getValue().size());
+                list.addAll(sharedList);
+                for (LocalLoader localLoader : entry.getValue()) {
+                    if (! list.contains(localLoader)) {
+                        list.add(localLoader);
+                    }
+                }
+                map.put(entry.getKey(), list);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Release the shared linkage this module's linkage was built from, if any.  Called when the module is unloaded.
+     */
+    void releaseSharedLinkage() {
+        final SharedLinkage sharedLinkage;
+        synchronized (this) {
+            sharedLinkage = this.sharedLinkage;
+            this.sharedLinkage = null;
+        }
+        if (sharedLinkage != null) {
+            moduleLoader.releaseSharedLinkage(sharedLinkage);
+        }
+    }
+
     void relinkIfNecessary() throws ModuleLoadException {
         Linkage oldLinkage = this.linkage;
         Linkage linkage;
@@ -1251,6 +1446,124 @@ public final class Module {
         link(linkage);
     }
 
+    /**
+     * Register this module as a dependent of every other module visited while linking it.
+     *
+     * @param visited the visited set of the link walk
+     */
+    private void registerDependent(final Set<Visited> visited) {
+        for (Visited v : visited) {
+            if (v.module != this) {
+                v.module.dependents.add(this);
+            }
+        }
+    }
+
+    /**
+     * Get the paths this module exports, if it is currently linked.
+     *
+     * @return the exported paths, or {@code null} if this module is not linked
+     */
+    Set<String> getExportedPathsIfLinked() {
+        final Linkage linkage = this.linkage;
+        return linkage.getState() == Linkage.State.LINKED ? linkage.getExportedPaths().keySet() : null;
+    }
+
+    /**
+     * Update the linkage of all modules which linked against this module, after this module's dependencies or
+     * resource loaders changed and this module was relinked.  Only the path entries which this module exported before
+     * or after the change are recomputed in each dependent, since no other entry can have been contributed by this
+     * module.  Dependents which are not linked are left alone; they see the change when they are linked.
+     *
+     * @param oldExportedPaths the paths this module exported before the change, or {@code null} if unknown
+     * @throws ModuleLoadException if relinking a dependent failed
+     */
+    void relinkDependents(final Set<String> oldExportedPaths) throws ModuleLoadException {
+        final Module[] dependents;
+        synchronized (this.dependents) {
+            dependents = this.dependents.toArray(new Module[this.dependents.size()]);
+        }
+        if (dependents.length == 0) {
+            return;
+        }
+        final Set<String> newExportedPaths = getExportedPathsIfLinked();
+        final Set<String> affected;
+        if (oldExportedPaths == null || newExportedPaths == null) {
+            affected = null;
+        } else {
+            affected = new HashSet<String>(oldExportedPaths);
+            affected.addAll(newExportedPaths);
+        }
+        for (Module dependent : dependents) {
+            dependent.relinkPaths(affected);
+        }
+    }
+
+    /**
+     * Recompute the given path entries of this module's linkage, if it is linked.  The walk is the same as a full link
+     * (so the loader order of each recomputed entry is the same as a full link would give), but only the given paths
+     * are considered, and dependencies whose filters reject all of them are not descended into.  The other entries are
+     * carried over from the current linkage, and the new linkage is swapped in atomically.  If the linkage is replaced
+     * by a concurrent relink while the entries are being recomputed, the recompute is repeated against the new linkage,
+     * so that no change is lost.
+     *
+     * @param paths the paths to recompute, or {@code null} to relink completely
+     * @throws ModuleLoadException if relinking failed
+     */
+    void relinkPaths(final Set<String> paths) throws ModuleLoadException {
+        for (;;) {
+            final Linkage linkage = this.linkage;
+            if (linkage.getState() != Linkage.State.LINKED) {
+                // whoever unlinked us links us again, against the current dependencies
+                return;
+            }
+            if (paths == null ? link(linkage) : relinkPaths(linkage, paths)) {
+                return;
+            }
+            // else the linkage was changed in the meantime; our change may not be part of it, so go again
+        }
+    }
+
+    private boolean relinkPaths(final Linkage linkage, final Set<String> paths) throws ModuleLoadException {
+        final HashMap<String, List<LocalLoader>> importsMap = new HashMap<String, List<LocalLoader>>(linkage.getAllPaths());
+        final HashMap<String, List<LocalLoader>> exportsMap = new HashMap<String, List<LocalLoader>>(linkage.getExportedPaths());
+        final HashMap<String, List<LocalLoader>> importsPart = new HashMap<String, List<LocalLoader>>();
+        final HashMap<String, List<LocalLoader>> exportsPart = new HashMap<String, List<LocalLoader>>();
+        final Dependency[] dependencies = linkage.getSourceList();
+        final long start = Metrics.getCurrentCPUTime();
+        long subtractTime = 0L;
+        try {
+            final Set<Visited> visited = new FastCopyHashSet<Visited>(16);
+            final FastCopyHashSet<PathFilter> filterStack = new FastCopyHashSet<PathFilter>(8);
+            subtractTime += addPaths(dependencies, importsPart, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, paths);
+            subtractTime += addExportedPaths(dependencies, exportsPart, filterStack, EMPTY_CLASS_FILTERS, EMPTY_PATH_FILTERS, visited, paths);
+            registerDependent(visited);
+            importsMap.keySet().removeAll(paths);
+            importsMap.putAll(importsPart);
+            exportsMap.keySet().removeAll(paths);
+            exportsMap.putAll(exportsPart);
+            SharedLinkage oldSharedLinkage = null;
+            boolean installed = false;
+            synchronized (this) {
+                if (this.linkage == linkage) {
+                    this.linkage = new Linkage(dependencies, Linkage.State.LINKED, importsMap, exportsMap);
+                    oldSharedLinkage = this.sharedLinkage;
+                    this.sharedLinkage = null;
+                    NegativeClassCache.invalidateAll();
+                    SharedLinkage.invalidateAll();
+                    notifyAll();
+                    installed = true;
+                }
+            }
+            if (oldSharedLinkage != null) {
+                moduleLoader.releaseSharedLinkage(oldSharedLinkage);
+            }
+            return installed;
+        } finally {
+            moduleLoader.addLinkTime(Metrics.getCurrentCPUTime() - start - subtractTime);
+        }
+    }
+
     void setDependencies(final List<DependencySpec> dependencySpecs) throws ModuleLoadException {
         synchronized (this) {
             linkage = new Linkage(calculateDependencies(dependencySpecs), Linkage.State.UNLINKED, null, null);
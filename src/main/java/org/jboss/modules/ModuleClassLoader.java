@@ -26,17 +26,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
+import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.jboss.modules.filter.PathFilter;
 
@@ -70,7 +73,9 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
 
     private volatile Paths<ResourceLoader, ResourceLoaderSpec> paths;
 
-    private ReentrantLock packageLock = new ReentrantLock();
+    private final ConcurrentHashMap<String, FutureClass> inFlight = new ConcurrentHashMap<String, FutureClass>();
+
+    private final ConcurrentHashMap<CodeSourceKey, ProtectionDomain> protectionDomains = new ConcurrentHashMap<CodeSourceKey, ProtectionDomain>();
 
     private final LocalLoader localLoader = new LocalLoader() {
         public Class<?> loadClassLocal(final String name, final boolean resolve) {
@@ -155,7 +160,7 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
                 if (filter.accept(path)) {
                     final List<ResourceLoader> allLoaders = allPaths.get(path);
                     if (allLoaders == null) {
-                        ArrayList<ResourceLoader> newList = new ArrayList<ResourceLoader>(16);
+                        ArrayList<ResourceLoader> newList = new ArrayList<ResourceLoader>(1);
                         newList.add(loader);
                         allPaths.put(path, newList);
                     } else {
@@ -164,7 +169,11 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
                 }
             }
         }
-        return pathsUpdater.compareAndSet(this, paths, new Paths<ResourceLoader, ResourceLoaderSpec>(resourceLoaders, allPaths, null));
+        if (pathsUpdater.compareAndSet(this, paths, new Paths<ResourceLoader, ResourceLoaderSpec>(resourceLoaders, allPaths, null))) {
+            ResourceRootWatcher.watch(module, resourceLoaders);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -182,6 +191,7 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
         // Check if we have already loaded it..
         Class<?> loadedClass = findLoadedClass(className);
         if (loadedClass != null) {
+            BootProfile.recordUse(module, className);
             if (resolve) {
                 resolveClass(loadedClass);
             }
@@ -198,6 +208,9 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
 
         // do not pass "module" here, since its toString may call findClass recursively
         final String identifierName = module.getIdentifier().getName();
+        if (module.getModuleLoader().isStacklessExceptions()) {
+            throw new StacklessClassNotFoundException(className, identifierName);
+        }
         throw new ClassNotFoundException(className + " from [" + identifierName + "]");
     }
 
@@ -215,12 +228,51 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
         // Check if we have already loaded it..
         Class<?> loadedClass = findLoadedClass(className);
         if (loadedClass != null) {
+            BootProfile.recordUse(module, className);
             if (resolve) {
                 resolveClass(loadedClass);
             }
             return loadedClass;
         }
 
+        // Coalesce concurrent definitions of the same class onto one thread
+        final FutureClass futureClass = new FutureClass();
+        final FutureClass existing = inFlight.putIfAbsent(className, futureClass);
+        if (existing != null && existing.owner != Thread.currentThread() && existing.await()) {
+            loadedClass = existing.getClassOrNull(className);
+            if (loadedClass != null) {
+                module.getModuleLoader().incAvoidedDefineCount();
+                BootProfile.recordUse(module, className);
+                if (resolve) {
+                    resolveClass(loadedClass);
+                }
+            }
+            return loadedClass;
+        }
+        if (existing != null) {
+            // reentrant load of a class this thread is already defining, so let the JVM report the circularity; or
+            // the defining thread is itself waiting for this one, so define it here and let the JVM pick a winner
+            return doLoadClassLocal(className, resolve);
+        }
+        try {
+            loadedClass = doLoadClassLocal(className, resolve);
+            futureClass.setClass(loadedClass);
+            return loadedClass;
+        } catch (ClassNotFoundException e) {
+            futureClass.setProblem(e);
+            throw e;
+        } catch (RuntimeException e) {
+            futureClass.setProblem(e);
+            throw e;
+        } catch (Error e) {
+            futureClass.setProblem(e);
+            throw e;
+        } finally {
+            inFlight.remove(className, futureClass);
+        }
+    }
+
+    private Class<?> doLoadClassLocal(final String className, final boolean resolve) throws ClassNotFoundException {
         final Map<String, List<ResourceLoader>> paths = this.paths.getAllPaths();
 
         String pathOfClass = Module.pathOfClass(className);
@@ -237,7 +289,16 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
             if (loaders.size() > 0) {
                 String fileName = Module.fileNameOfClass(className);
                 for (ResourceLoader loader : loaders) {
+                    final EntryFilter entryFilter = EntryFilter.of(loader);
+                    if (entryFilter != null && ! entryFilter.mayContain(fileName)) {
+                        // definitely not here
+                        module.getModuleLoader().incEntryFilterSkipCount();
+                        continue;
+                    }
                     classSpec = loader.getClassSpec(fileName);
+                    if (classSpec == null && entryFilter != null) {
+                        module.getModuleLoader().incEntryFilterFalsePositiveCount();
+                    }
                     if (classSpec != null) {
                         resourceLoader = loader;
                         try {
@@ -291,7 +352,7 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
 
         for (ResourceLoader loader : loaders) {
             if (root.equals(loader.getRootName())) {
-                return loader.getResource(name);
+                return getResource(loader, name);
             }
         }
 
@@ -317,7 +378,7 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
 
         final List<Resource> list = new ArrayList<Resource>(loaders.size());
         for (ResourceLoader loader : loaders) {
-            final Resource resource = loader.getResource(name);
+            final Resource resource = getResource(loader, name);
             if (resource != null) {
                 list.add(resource);
             }
@@ -325,10 +386,36 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
         return list.isEmpty() ? Collections.<Resource>emptyList() : list;
     }
 
-    private Class<?> doDefineOrLoadClass(final String className, final byte[] bytes, int off, int len, CodeSource codeSource) {
+    private Resource getResource(final ResourceLoader loader, final String name) {
+        final EntryFilter entryFilter = EntryFilter.of(loader);
+        if (entryFilter != null && ! entryFilter.mayContain(name)) {
+            // definitely not here
+            module.getModuleLoader().incEntryFilterSkipCount();
+            return null;
+        }
+        final Resource resource = loader.getResource(name);
+        if (resource == null && entryFilter != null) {
+            module.getModuleLoader().incEntryFilterFalsePositiveCount();
+        }
+        return resource;
+    }
+
+    /**
+     * Define a class from either a byte buffer or a byte array, or get the class which a racing thread defined first.
+     *
+     * @param className the class name
+     * @param byteBuffer the class bytes, or {@code null} to define from the array
+     * @param bytes the class bytes, if {@code byteBuffer} is {@code null}
+     * @param off the offset of the class bytes in the array
+     * @param len the length of the class bytes in the array
+     * @param protectionDomain the protection domain
+     * @return the class
+     */
+    private Class<?> doDefineOrLoadClass(final String className, final ByteBuffer byteBuffer, final byte[] bytes, int off, int len, ProtectionDomain protectionDomain) {
         try {
-            final Class<?> definedClass = defineClass(className, bytes, off, len, codeSource);
+            final Class<?> definedClass = byteBuffer != null ? defineClass(className, byteBuffer, protectionDomain) : defineClass(className, bytes, off, len, protectionDomain);
             module.getModuleLoader().incClassCount();
+            BootProfile.recordDefine(module, className);
             return definedClass;
         } catch (LinkageError e) {
             final Class<?> loadedClass = findLoadedClass(className);
@@ -359,20 +446,10 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
             final String packageName = name.substring(0, lastIdx);
             Package pkg = findLoadedPackage(packageName);
             if (pkg == null) {
-                packageLock.lock();
                 try {
-                    // re-get inside locked context to not define twice
-                    pkg = findLoadedPackage(packageName);
-                    if (pkg == null) {
-                        try {
-                            pkg = definePackage(packageName, resourceLoader.getPackageSpec(packageName));
-                        } catch (IOException e) {
-                            pkg = definePackage(packageName, null);
-                        }
-                    }
-                }
-                finally {
-                    packageLock.unlock();
+                    pkg = definePackage(packageName, resourceLoader.getPackageSpec(packageName));
+                } catch (IOException e) {
+                    pkg = definePackage(packageName, null);
                 }
             }
             // Check sealing
@@ -383,12 +460,20 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
         }
         final Class<?> newClass;
         try {
-            byte[] bytes = classSpec.getBytes();
+            final ByteBuffer byteBuffer = classSpec.getByteBuffer();
+            final ProtectionDomain protectionDomain = getProtectionDomain(classSpec.getCodeSource());
             try {
+                if (transformer == null && byteBuffer != null) {
+                    // define straight from the buffer, without an intermediate array
+                    final long start = Metrics.getCurrentCPUTime();
+                    newClass = doDefineOrLoadClass(name, byteBuffer.duplicate(), null, 0, 0, protectionDomain);
+                    module.getModuleLoader().addClassLoadTime(Metrics.getCurrentCPUTime() - start);
+                    return finishDefine(name, classSpec, newClass);
+                }
+                byte[] bytes = classSpec.getBytes();
                 if (transformer != null) {
                     try {
-                        // todo: support protection domain
-                        bytes = transformer.transform(this, name.replace('.', '/'), null, null, bytes);
+                        bytes = transformer.transform(this, name.replace('.', '/'), null, protectionDomain, bytes);
                     } catch (Exception e) {
                         ClassFormatError error = new ClassFormatError(e.getMessage());
                         error.initCause(e);
@@ -396,7 +481,7 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
                     }
                 }
                 final long start = Metrics.getCurrentCPUTime();
-                newClass = doDefineOrLoadClass(name, bytes, 0, bytes.length, classSpec.getCodeSource());
+                newClass = doDefineOrLoadClass(name, null, bytes, 0, bytes.length, protectionDomain);
                 module.getModuleLoader().addClassLoadTime(Metrics.getCurrentCPUTime() - start);
             } catch (NoClassDefFoundError e) {
                 // Prepend the current class name, so that transitive class definition issues are clearly expressed
@@ -409,6 +494,10 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
         } catch (RuntimeException e) {
             throw e;
         }
+        return finishDefine(name, classSpec, newClass);
+    }
+
+    private Class<?> finishDefine(final String name, final ClassSpec classSpec, final Class<?> newClass) {
         final AssertionSetting setting = classSpec.getAssertionSetting();
         if (setting != AssertionSetting.INHERIT) {
             setClassAssertionStatus(name, setting == AssertionSetting.ENABLED);
@@ -490,8 +579,7 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
     @Override
     public final InputStream findResourceAsStream(final String name, boolean exportsOnly) {
         try {
-            final URL resource = findResource(name, exportsOnly);
-            return resource == null ? null : resource.openStream();
+            return module.getResourceAsStream(name, exportsOnly);
         } catch (IOException e) {
             return null;
         }
@@ -520,6 +608,31 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
         return paths.getAllPaths().keySet();
     }
 
+    /**
+     * Get the protection domain for a code source.  Unlike the JDK's own protection domain cache, lookups
+     * do not take any lock, so parallel class definitions in this class loader do not serialise here.  Like the JDK's
+     * cache, domains are keyed by the location string rather than the URL, since {@link URL#equals(Object)} may
+     * resolve host names.
+     *
+     * @param codeSource the code source, or {@code null} for the default domain
+     * @return the protection domain, or {@code null} for the default domain
+     */
+    private ProtectionDomain getProtectionDomain(final CodeSource codeSource) {
+        if (codeSource == null) {
+            return null;
+        }
+        final CodeSourceKey key = new CodeSourceKey(codeSource);
+        ProtectionDomain protectionDomain = protectionDomains.get(key);
+        if (protectionDomain == null) {
+            protectionDomain = new ProtectionDomain(codeSource, getPermissions(codeSource), this, null);
+            final ProtectionDomain appearing = protectionDomains.putIfAbsent(key, protectionDomain);
+            if (appearing != null) {
+                protectionDomain = appearing;
+            }
+        }
+        return protectionDomain;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected final PermissionCollection getPermissions(final CodeSource codesource) {
@@ -606,6 +719,143 @@ public class ModuleClassLoader extends ConcurrentClassLoader {
         return loaders;
     }
 
+    /**
+     * A protection domain cache key which compares the location of a code source as a string, and its signers.
+     */
+    private static final class CodeSourceKey {
+        private final String location;
+        private final Object[] signers;
+
+        CodeSourceKey(final CodeSource codeSource) {
+            final URL url = codeSource.getLocation();
+            location = url == null ? null : url.toString();
+            final Object[] codeSigners = codeSource.getCodeSigners();
+            signers = codeSigners != null ? codeSigners : codeSource.getCertificates();
+        }
+
+        public boolean equals(final Object obj) {
+            return obj instanceof CodeSourceKey && equals((CodeSourceKey) obj);
+        }
+
+        private boolean equals(final CodeSourceKey other) {
+            return (location == null ? other.location == null : location.equals(other.location)) && Arrays.equals(signers, other.signers);
+        }
+
+        public int hashCode() {
+            return location == null ? 0 : location.hashCode();
+        }
+    }
+
+    /**
+     * A class definition in progress on some thread, which other threads loading the same class wait for.
+     */
+    private static final class FutureClass {
+        private static final Object NOT_FOUND = new Object();
+
+        /**
+         * The definition each thread is currently waiting for, across all module class loaders.
+         */
+        private static final ConcurrentHashMap<Thread, FutureClass> waiting = new ConcurrentHashMap<Thread, FutureClass>();
+
+        final Thread owner = Thread.currentThread();
+        private volatile Object result;
+
+        /**
+         * Wait for the owner to finish the definition, unless the owner is (perhaps through other threads) waiting for
+         * the current thread, which would deadlock.  The current thread is registered as waiting before the check, so
+         * of two threads which start waiting for each other at once, at least one sees the cycle.
+         *
+         * @return {@code true} if the definition is finished, {@code false} if waiting would deadlock
+         */
+        boolean await() {
+            final Thread current = Thread.currentThread();
+            if (result != null) {
+                return true;
+            }
+            waiting.put(current, this);
+            boolean intr = false;
+            try {
+                if (leadsTo(current)) {
+                    return false;
+                }
+                synchronized (this) {
+                    while (result == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            intr = true;
+                        }
+                    }
+                }
+                return true;
+            } finally {
+                waiting.remove(current, this);
+                if (intr) Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean leadsTo(final Thread thread) {
+            FutureClass futureClass = this;
+            // bounded, in case threads other than this one form a cycle which they are about to break up
+            for (int i = waiting.size(); futureClass != null && i >= 0; i --) {
+                if (futureClass.owner == thread) {
+                    return true;
+                }
+                futureClass = waiting.get(futureClass.owner);
+            }
+            return false;
+        }
+
+        /**
+         * Get the outcome of a finished definition.  A failed definition is reported to each waiter with a new
+         * exception of its own, caused by the owner's exception.
+         *
+         * @param className the class name
+         * @return the class, or {@code null} if it was not found
+         * @throws ClassNotFoundException if the definition failed
+         */
+        Class<?> getClassOrNull(final String className) throws ClassNotFoundException {
+            final Object result = this.result;
+            if (result == NOT_FOUND) return null;
+            if (result instanceof ClassNotFoundException) {
+                final Throwable problem = (Throwable) result;
+                final Throwable cause = problem.getCause();
+                // keep an unchecked cause where the local loader looks for it
+                if (cause instanceof RuntimeException || cause instanceof Error) {
+                    throw new ClassNotFoundException(className, wrap(className, cause));
+                }
+                throw new ClassNotFoundException(className, problem);
+            }
+            if (result instanceof RuntimeException) throw (RuntimeException) wrap(className, (Throwable) result);
+            if (result instanceof Error) throw (Error) wrap(className, (Throwable) result);
+            return (Class<?>) result;
+        }
+
+        private Throwable wrap(final String className, final Throwable problem) {
+            final String message = "Failed to define " + className + " in thread " + owner.getName();
+            if (problem instanceof RuntimeException) {
+                return new RuntimeException(message, problem);
+            }
+            final Error error = problem instanceof LinkageError ? new NoClassDefFoundError(message) : new Error(message);
+            error.initCause(problem);
+            return error;
+        }
+
+        void setClass(Class<?> clazz) {
+            synchronized (this) {
+                result = clazz == null ? NOT_FOUND : clazz;
+                notifyAll();
+            }
+        }
+
+        void setProblem(Throwable problem) {
+            synchronized (this) {
+                result = problem;
+                notifyAll();
+            }
+        }
+    }
+
     /**
      * An opaque configuration used internally to create a module class loader.
      *
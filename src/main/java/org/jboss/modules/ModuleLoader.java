@@ -31,6 +31,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -78,6 +79,7 @@ public abstract class ModuleLoader {
     private static volatile MBeanReg REG_REF = new TempMBeanReg();
 
     private final ConcurrentMap<ModuleIdentifier, FutureModule> moduleMap = new ConcurrentHashMap<ModuleIdentifier, FutureModule>();
+    private final Map<SharedLinkage.Key, SharedLinkage> sharedLinkages = new HashMap<SharedLinkage.Key, SharedLinkage>();
 
     private final boolean canRedefine;
     private final ModuleLoaderMXBean mxBean;
@@ -93,17 +95,42 @@ public abstract class ModuleLoader {
     @SuppressWarnings("unused")
     private volatile int raceCount;
     @SuppressWarnings("unused")
+    private volatile int avoidedDefineCount;
+    @SuppressWarnings("unused")
     private volatile int classCount;
+    @SuppressWarnings("unused")
+    private volatile int negativeClassCacheHitCount;
+    @SuppressWarnings("unused")
+    private volatile int negativeClassCacheMissCount;
+    @SuppressWarnings("unused")
+    private volatile int entryFilterSkipCount;
+    @SuppressWarnings("unused")
+    private volatile int entryFilterFalsePositiveCount;
 
     private static final AtomicLongFieldUpdater<ModuleLoader> linkTimeUpdater = AtomicLongFieldUpdater.newUpdater(ModuleLoader.class, "linkTime");
     private static final AtomicLongFieldUpdater<ModuleLoader> loadTimeUpdater = AtomicLongFieldUpdater.newUpdater(ModuleLoader.class, "loadTime");
     private static final AtomicLongFieldUpdater<ModuleLoader> classLoadTimeUpdater = AtomicLongFieldUpdater.newUpdater(ModuleLoader.class, "classLoadTime");
     private static final AtomicIntegerFieldUpdater<ModuleLoader> scanCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "scanCount");
     private static final AtomicIntegerFieldUpdater<ModuleLoader> raceCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "raceCount");
+    private static final AtomicIntegerFieldUpdater<ModuleLoader> avoidedDefineCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "avoidedDefineCount");
     private static final AtomicIntegerFieldUpdater<ModuleLoader> classCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "classCount");
+    private static final AtomicIntegerFieldUpdater<ModuleLoader> negativeClassCacheHitCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "negativeClassCacheHitCount");
+    private static final AtomicIntegerFieldUpdater<ModuleLoader> negativeClassCacheMissCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "negativeClassCacheMissCount");
+    private static final AtomicIntegerFieldUpdater<ModuleLoader> entryFilterSkipCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "entryFilterSkipCount");
+    private static final AtomicIntegerFieldUpdater<ModuleLoader> entryFilterFalsePositiveCountUpdater = AtomicIntegerFieldUpdater.newUpdater(ModuleLoader.class, "entryFilterFalsePositiveCount");
 
     private static final long LOAD_RETRY_TIME = Long.getLong("org.jboss.modules.ModuleLoader.LOAD_RETRY_TIME", 3000);
 
+    private static final boolean STACKLESS_EXCEPTIONS;
+    private static final boolean DEBUG_EXCEPTIONS;
+
+    static {
+        STACKLESS_EXCEPTIONS = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.stackless-exceptions", "false")));
+        DEBUG_EXCEPTIONS = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.debug-exceptions", "false")));
+    }
+
+    private volatile boolean stacklessExceptions = STACKLESS_EXCEPTIONS;
+
     // Bypass security check for classes in this package
     ModuleLoader(boolean canRedefine, boolean skipRegister) {
         this.canRedefine = canRedefine;
@@ -205,7 +232,7 @@ public abstract class ModuleLoader {
             try {
                 Module module = preloadModule(identifier);
                 if (module == null) {
-                    throw new ModuleNotFoundException(identifier.toString());
+                    throw moduleNotFound(identifier, null);
                 }
                 module.relinkIfNecessary();
                 return module;
@@ -383,6 +410,74 @@ public abstract class ModuleLoader {
         if (futureModule != null && futureModule.module != null && futureModule.module == module) {
             moduleMap.remove(id, futureModule);
         }
+        module.releaseSharedLinkage();
+        ResourceRootWatcher.unwatch(module);
+    }
+
+    /**
+     * Get a current shared linkage for the given dependencies, and count the module as one more user of it.
+     *
+     * @param key the key of the dependencies
+     * @param module the module being linked
+     * @return the shared linkage, or {@code null} if there is none which the module can use
+     */
+    SharedLinkage acquireSharedLinkage(final SharedLinkage.Key key, final Module module) {
+        synchronized (sharedLinkages) {
+            final SharedLinkage sharedLinkage = sharedLinkages.get(key);
+            if (sharedLinkage == null) {
+                return null;
+            }
+            if (! sharedLinkage.isCurrent()) {
+                // its remaining users release it as they relink or unload
+                sharedLinkages.remove(key);
+                return null;
+            }
+            if (sharedLinkage.hasVisited(module)) {
+                // the dependencies lead back to this module, so the shared paths lack its own exports
+                return null;
+            }
+            sharedLinkage.refs++;
+            return sharedLinkage;
+        }
+    }
+
+    /**
+     * Register a newly computed shared linkage and count the module as a user of it.  If an equivalent current
+     * shared linkage was registered in the meantime, that one is used instead.
+     *
+     * @param sharedLinkage the new shared linkage
+     * @return the registered shared linkage
+     */
+    SharedLinkage addSharedLinkage(final SharedLinkage sharedLinkage) {
+        synchronized (sharedLinkages) {
+            final SharedLinkage existing = sharedLinkages.get(sharedLinkage.getKey());
+            if (existing != null && existing.isCurrent()) {
+                existing.refs++;
+                return existing;
+            }
+            sharedLinkages.put(sharedLinkage.getKey(), sharedLinkage);
+            sharedLinkage.refs++;
+            return sharedLinkage;
+        }
+    }
+
+    /**
+     * Release a module's use of a shared linkage.  The shared linkage is discarded when its last user releases it.
+     *
+     * @param sharedLinkage the shared linkage
+     */
+    void releaseSharedLinkage(final SharedLinkage sharedLinkage) {
+        synchronized (sharedLinkages) {
+            if (--sharedLinkage.refs == 0 && sharedLinkages.get(sharedLinkage.getKey()) == sharedLinkage) {
+                sharedLinkages.remove(sharedLinkage.getKey());
+            }
+        }
+    }
+
+    int getSharedLinkageCount() {
+        synchronized (sharedLinkages) {
+            return sharedLinkages.size();
+        }
     }
 
     /**
@@ -432,7 +527,9 @@ public abstract class ModuleLoader {
      * Refreshes the paths provided by resource loaders associated with the
      * specified Module. This is an advanced method that is intended to be
      * called on modules that have a resource loader implementation that has
-     * changed and is returning different paths.
+     * changed and is returning different paths.  If the module is linked, it
+     * is relinked, and the affected paths of all modules linked against it are
+     * updated.
      *
      * @param module the module to refresh
      */
@@ -441,15 +538,42 @@ public abstract class ModuleLoader {
             throw new SecurityException("Module redefinition requires canRedefineModule permission");
 
         module.getClassLoaderPrivate().recalculate();
+        SharedLinkage.invalidateAll();
+        relinkAfterRefresh(module);
+    }
+
+    /**
+     * Refresh a module whose exploded resource roots changed on disk, if this loader may redefine modules.
+     *
+     * @param module the module to refresh
+     */
+    void refreshChangedResourceLoaders(final Module module) {
+        if (canRedefine) {
+            refreshResourceLoaders(module);
+        }
+    }
+
+    private static void relinkAfterRefresh(final Module module) {
+        final Set<String> exportedPaths = module.getExportedPathsIfLinked();
+        if (exportedPaths == null) {
+            // not linked yet, so nothing to update but misses cached while the loaders changed
+            NegativeClassCache.invalidateAll();
+            return;
+        }
+        try {
+            module.relinkPaths(null);
+            module.relinkDependents(exportedPaths);
+        } catch (ModuleLoadException e) {
+            throw e.toError();
+        }
     }
 
     /**
      * Replaces the resources loaders for the specified module and refreshes the
      * internal path list that is derived from the loaders. This is an advanced
      * method that should be used carefully, since it alters a live module.
-     * Modules that import resources from the specified module will not
-     * automatically be updated to reflect the change. For this to occur
-     * {@link #relink(Module)} must be called on all of them.
+     * If the module is linked, it is relinked, and the affected paths of all
+     * modules linked against it are updated.
      *
      * @param module the module to update and refresh
      * @param loaders the new collection of loaders the module should use
@@ -459,14 +583,16 @@ public abstract class ModuleLoader {
             throw new SecurityException("Module redefinition requires canRedefineModule permission");
 
         module.getClassLoaderPrivate().setResourceLoaders(loaders.toArray(new ResourceLoaderSpec[loaders.size()]));
+        SharedLinkage.invalidateAll();
+        relinkAfterRefresh(module);
     }
 
     /**
-     * Relinks the dependencies associated with the specified Module. This is an
-     * advanced method that is intended to be called on all modules that
-     * directly or indirectly import dependencies that are re-exported by a module
-     * that has recently been updated and relinked via
-     * {@link #setAndRelinkDependencies(Module, java.util.List)}.
+     * Relinks the dependencies associated with the specified Module, and updates
+     * the affected paths of all modules linked against it.  Since
+     * {@link #setAndRelinkDependencies(Module, java.util.List)} already updates
+     * such modules, this is only needed if the dependencies of a module changed
+     * in some other way.
      *
      * @param module the module to relink
      * @throws ModuleLoadException if relinking failed
@@ -475,16 +601,18 @@ public abstract class ModuleLoader {
         if (!canRedefine)
             throw new SecurityException("Module redefinition requires canRedefineModule permission");
 
+        final Set<String> exportedPaths = module.getExportedPathsIfLinked();
+        SharedLinkage.invalidateAll();
         module.relink();
+        module.relinkDependents(exportedPaths);
     }
 
     /**
      * Replaces the dependencies for the specified module and relinks against
      * the new modules This is an advanced method that should be used carefully,
-     * since it alters a live module. Modules that import dependencies that are
-     * re-exported from the specified module will not automatically be updated
-     * to reflect the change. For this to occur {@link #relink(Module)} must be
-     * called on all of them.
+     * since it alters a live module. Modules linked against the specified
+     * module are updated as well, but only in the paths which the module
+     * exported before or after the change.
      *
      * @param module the module to update and relink
      * @param dependencies the new dependency list
@@ -494,8 +622,42 @@ public abstract class ModuleLoader {
         if (!canRedefine)
             throw new SecurityException("Module redefinition requires canRedefineModule permission");
 
+        final Set<String> exportedPaths = module.getExportedPathsIfLinked();
         module.setDependencies(dependencies);
+        SharedLinkage.invalidateAll();
         module.relinkIfNecessary();
+        module.relinkDependents(exportedPaths);
+    }
+
+    /**
+     * Set whether this module loader throws stackless exceptions when a class or module cannot be found.  Stackless
+     * exceptions are much cheaper to create, which matters when optional classes or modules are probed frequently,
+     * but they carry no stack trace.  The default is given by the {@code jboss.modules.stackless-exceptions} system
+     * property.  Setting the {@code jboss.modules.debug-exceptions} system property to {@code true} restores full
+     * stack traces regardless of this setting.
+     *
+     * @param stacklessExceptions {@code true} to throw stackless exceptions, {@code false} to throw regular ones
+     */
+    protected final void setStacklessExceptions(final boolean stacklessExceptions) {
+        this.stacklessExceptions = stacklessExceptions;
+    }
+
+    boolean isStacklessExceptions() {
+        return stacklessExceptions && ! DEBUG_EXCEPTIONS;
+    }
+
+    /**
+     * Create the exception to throw when a module is not found.
+     *
+     * @param identifier the identifier of the missing module
+     * @param moduleLoader the module loader to name in the message, or {@code null} to give only the identifier
+     * @return the exception
+     */
+    ModuleNotFoundException moduleNotFound(final ModuleIdentifier identifier, final ModuleLoader moduleLoader) {
+        if (isStacklessExceptions()) {
+            return new StacklessModuleNotFoundException(identifier, moduleLoader);
+        }
+        return new ModuleNotFoundException(moduleLoader == null ? identifier.toString() : "Module " + identifier + " is not found in " + moduleLoader);
     }
 
     void addLinkTime(long amount) {
@@ -514,10 +676,34 @@ public abstract class ModuleLoader {
         if (Metrics.ENABLED) raceCountUpdater.getAndIncrement(this);
     }
 
+    void incAvoidedDefineCount() {
+        if (Metrics.ENABLED) avoidedDefineCountUpdater.getAndIncrement(this);
+    }
+
+    int getAvoidedDefineCount() {
+        return avoidedDefineCount;
+    }
+
     void incClassCount() {
         if (Metrics.ENABLED) classCountUpdater.getAndIncrement(this);
     }
 
+    void incNegativeClassCacheHitCount() {
+        if (Metrics.ENABLED) negativeClassCacheHitCountUpdater.getAndIncrement(this);
+    }
+
+    void incNegativeClassCacheMissCount() {
+        if (Metrics.ENABLED) negativeClassCacheMissCountUpdater.getAndIncrement(this);
+    }
+
+    void incEntryFilterSkipCount() {
+        if (Metrics.ENABLED) entryFilterSkipCountUpdater.getAndIncrement(this);
+    }
+
+    void incEntryFilterFalsePositiveCount() {
+        if (Metrics.ENABLED) entryFilterFalsePositiveCountUpdater.getAndIncrement(this);
+    }
+
     private static final class FutureModule {
         private static final Object NOT_FOUND = new Object();
 
@@ -597,10 +783,30 @@ public abstract class ModuleLoader {
             return getModuleLoader().raceCount;
         }
 
+        public int getAvoidedDefineCount() {
+            return getModuleLoader().avoidedDefineCount;
+        }
+
         public int getClassCount() {
             return getModuleLoader().classCount;
         }
 
+        public int getNegativeClassCacheHitCount() {
+            return getModuleLoader().negativeClassCacheHitCount;
+        }
+
+        public int getNegativeClassCacheMissCount() {
+            return getModuleLoader().negativeClassCacheMissCount;
+        }
+
+        public int getEntryFilterSkipCount() {
+            return getModuleLoader().entryFilterSkipCount;
+        }
+
+        public int getEntryFilterFalsePositiveCount() {
+            return getModuleLoader().entryFilterFalsePositiveCount;
+        }
+
         public List<String> queryLoadedModuleNames() {
             ModuleLoader loader = getModuleLoader();
             final Set<ModuleIdentifier> identifiers = loader.moduleMap.keySet();
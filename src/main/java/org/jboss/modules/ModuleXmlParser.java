@@ -43,7 +43,6 @@ import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarFile;
 import org.jboss.modules.filter.MultiplePathFilterBuilder;
 import org.jboss.modules.filter.PathFilter;
 import org.jboss.modules.filter.PathFilters;
@@ -245,9 +244,10 @@ final class ModuleXmlParser {
                         File file = new File(rootPath, loaderPath);
                         if (file.isDirectory()) {
                             return new FileResourceLoader(loaderName, file);
+                        } else if (ResourceLoaders.MAPPED_JARS) {
+                            return MappedJarResourceLoader.create(loaderName, file);
                         } else {
-                            final JarFile jarFile = new JarFile(file, true);
-                            return new JarFileResourceLoader(loaderName, jarFile);
+                            return ResourceLoaders.createSharedJarResourceLoader(loaderName, file);
                         }
                     }
                 }, root.getPath(), new BufferedInputStream(fis), moduleInfoFile.getPath(), moduleIdentifier);
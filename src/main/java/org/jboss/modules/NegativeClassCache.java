@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.security.AccessController;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded cache of class names which a module failed to find.  Each cache is stamped with the linkage generation
+ * that was current when it was created; any change to module linkage or resource loaders advances the generation,
+ * which causes every existing cache to be discarded on its next use.
+ */
+final class NegativeClassCache {
+    static final int MAX_SIZE;
+
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    static {
+        MAX_SIZE = Integer.parseInt(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.negative-class-cache.size", "1024")));
+    }
+
+    private final int myGeneration;
+    private final ConcurrentHashMap<String, Boolean> names = new ConcurrentHashMap<String, Boolean>();
+
+    private NegativeClassCache(final int myGeneration) {
+        this.myGeneration = myGeneration;
+    }
+
+    /**
+     * Get a cache which is valid for the current linkage generation.
+     *
+     * @param cache the previous cache, or {@code null} if there is none
+     * @return the given cache if it is still current, otherwise a new empty cache, or {@code null} if negative
+     *  caching is disabled
+     */
+    static NegativeClassCache current(final NegativeClassCache cache) {
+        if (MAX_SIZE <= 0) {
+            return null;
+        }
+        final int current = generation.get();
+        return cache != null && cache.myGeneration == current ? cache : new NegativeClassCache(current);
+    }
+
+    /**
+     * Invalidate all negative class caches.  Must be called whenever the linkage or resource loaders of any
+     * module change.
+     */
+    static void invalidateAll() {
+        generation.incrementAndGet();
+    }
+
+    boolean contains(final String className) {
+        return names.containsKey(className);
+    }
+
+    void add(final String className) {
+        if (names.size() >= MAX_SIZE) {
+            // simple overflow policy: start over
+            names.clear();
+        }
+        names.put(className, Boolean.TRUE);
+    }
+}
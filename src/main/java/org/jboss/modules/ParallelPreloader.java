@@ -0,0 +1,176 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.jboss.modules.filter.PathFilters;
+
+/**
+ * Preloads the transitive module dependencies of a module in parallel before it is linked.  Linking itself stays
+ * a single serial walk of the dependency graph in declaration order, so the resulting path ordering is exactly the
+ * same as without preloading; the walk just finds every module already loaded instead of loading each one in turn.
+ * <p>
+ * Enabled by setting {@code jboss.modules.parallel-link} to {@code true}.  The size of the fork-join pool is given by
+ * {@code jboss.modules.parallel-link.threads} and defaults to the number of available processors.
+ */
+final class ParallelPreloader {
+    static final boolean ENABLED;
+    static final int THREADS;
+
+    static {
+        ENABLED = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.parallel-link", "false")));
+        THREADS = Integer.parseInt(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.parallel-link.threads", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+    }
+
+    private ParallelPreloader() {
+    }
+
+    static final class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, THREADS));
+    }
+
+    /**
+     * Preload all modules reachable through the given dependencies, following only exported dependencies past the
+     * first level, just like linking does.  Load failures are ignored here; linking encounters and reports them
+     * again in order.
+     *
+     * @param dependencies the dependencies of the module to be linked
+     */
+    static void preload(final Dependency[] dependencies) {
+        final PreloadTask task = new PreloadTask(dependencies, false, new ConcurrentHashMap<Key, Boolean>());
+        if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == PoolHolder.POOL) {
+            task.invoke();
+        } else {
+            PoolHolder.POOL.invoke(task);
+        }
+    }
+
+    static final class PreloadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Dependency[] dependencies;
+        private final boolean exportsOnly;
+        private final ConcurrentHashMap<Key, Boolean> seen;
+
+        PreloadTask(final Dependency[] dependencies, final boolean exportsOnly, final ConcurrentHashMap<Key, Boolean> seen) {
+            this.dependencies = dependencies;
+            this.exportsOnly = exportsOnly;
+            this.seen = seen;
+        }
+
+        protected void compute() {
+            final List<DependencyTask> tasks = new ArrayList<DependencyTask>();
+            for (Dependency dependency : dependencies) {
+                if (dependency instanceof ModuleDependency && ! (exportsOnly && dependency.getExportFilter() == PathFilters.rejectAll())) {
+                    final ModuleDependency moduleDependency = (ModuleDependency) dependency;
+                    if (seen.putIfAbsent(new Key(moduleDependency.getModuleLoader(), moduleDependency.getIdentifier()), Boolean.TRUE) == null) {
+                        tasks.add(new DependencyTask(moduleDependency, seen));
+                    }
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    static final class DependencyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ModuleDependency dependency;
+        private final ConcurrentHashMap<Key, Boolean> seen;
+
+        DependencyTask(final ModuleDependency dependency, final ConcurrentHashMap<Key, Boolean> seen) {
+            this.dependency = dependency;
+            this.seen = seen;
+        }
+
+        protected void compute() {
+            // loading may block on another thread's load of the same module, so let the pool compensate for it
+            final ModuleBlocker blocker = new ModuleBlocker(dependency);
+            try {
+                ForkJoinPool.managedBlock(blocker);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final Module module = blocker.module;
+            if (module != null) {
+                new PreloadTask(module.getDependencies(), true, seen).compute();
+            }
+        }
+    }
+
+    static final class ModuleBlocker implements ForkJoinPool.ManagedBlocker {
+        private final ModuleDependency dependency;
+        private volatile boolean done;
+        Module module;
+
+        ModuleBlocker(final ModuleDependency dependency) {
+            this.dependency = dependency;
+        }
+
+        public boolean block() {
+            try {
+                module = dependency.getModuleLoader().preloadModule(dependency.getIdentifier());
+            } catch (ModuleLoadException ignored) {
+            } catch (RuntimeException ignored) {
+            }
+            done = true;
+            return true;
+        }
+
+        public boolean isReleasable() {
+            return done;
+        }
+    }
+
+    static final class Key {
+        private final ModuleLoader moduleLoader;
+        private final ModuleIdentifier identifier;
+        private final int hashCode;
+
+        Key(final ModuleLoader moduleLoader, final ModuleIdentifier identifier) {
+            this.moduleLoader = moduleLoader;
+            this.identifier = identifier;
+            hashCode = System.identityHashCode(moduleLoader) * 31 + identifier.hashCode();
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(final Object other) {
+            return other instanceof Key && equals((Key) other);
+        }
+
+        public boolean equals(final Key other) {
+            return this == other || other != null && moduleLoader == other.moduleLoader && identifier.equals(other.identifier);
+        }
+    }
+}
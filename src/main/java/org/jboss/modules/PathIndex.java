@@ -0,0 +1,188 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map from path to the list of loaders for that path, used for the linked path maps of modules and
+ * module class loaders.  Entries live in a pair of open-addressed arrays rather than in hash map nodes, path keys are
+ * interned so that the many modules which share a path share its name, and each value is an exact-size fixed list.
+ *
+ * @param <V> the loader type
+ */
+final class PathIndex<V> extends AbstractMap<String, List<V>> {
+    private static final Class<?> FIXED_LIST = Arrays.asList(new Object[2]).getClass();
+    private static final Class<?> SINGLETON_LIST = Collections.singletonList(null).getClass();
+
+    private final String[] keys;
+    private final Object[] values;
+    private final int size;
+    private Set<Map.Entry<String, List<V>>> entrySet;
+
+    private PathIndex(final Map<String, List<V>> map) {
+        final int size = map.size();
+        // keep the load factor at or below one half so probe sequences stay short
+        int capacity = 4;
+        while (capacity < size << 1) {
+            capacity <<= 1;
+        }
+        final String[] keys = new String[capacity];
+        final Object[] values = new Object[capacity];
+        final int mask = capacity - 1;
+        for (Map.Entry<String, List<V>> entry : map.entrySet()) {
+            final String key = entry.getKey().intern();
+            int idx = hash(key) & mask;
+            while (keys[idx] != null) {
+                idx = idx + 1 & mask;
+            }
+            keys[idx] = key;
+            values[idx] = compact(entry.getValue());
+        }
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Get a compact immutable copy of a path map.
+     *
+     * @param map the path map, or {@code null}
+     * @param <V> the loader type
+     * @return the compact copy, or {@code null} if the map is {@code null}
+     */
+    static <V> Map<String, List<V>> of(final Map<String, List<V>> map) {
+        if (map == null || map instanceof PathIndex) {
+            return map;
+        }
+        if (map.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return new PathIndex<V>(map);
+    }
+
+    @SuppressWarnings({ "unchecked" })
+    private static <V> List<V> compact(final List<V> list) {
+        if (list.getClass() == FIXED_LIST || list.getClass() == SINGLETON_LIST || list == Collections.emptyList()) {
+            // already compact, possibly shared with other indexes
+            return list;
+        }
+        switch (list.size()) {
+            case 0: return Collections.emptyList();
+            case 1: return Collections.singletonList(list.get(0));
+            default: return (List<V>) Arrays.asList(list.toArray());
+        }
+    }
+
+    private static int hash(final String key) {
+        final int h = key.hashCode();
+        return h ^ h >>> 16;
+    }
+
+    private int indexOf(final Object key) {
+        if (! (key instanceof String)) {
+            return -1;
+        }
+        final String[] keys = this.keys;
+        final int mask = keys.length - 1;
+        int idx = hash((String) key) & mask;
+        String k;
+        while ((k = keys[idx]) != null) {
+            if (k == key || k.equals(key)) {
+                return idx;
+            }
+            idx = idx + 1 & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings({ "unchecked" })
+    public List<V> get(final Object key) {
+        final int idx = indexOf(key);
+        return idx == -1 ? null : (List<V>) values[idx];
+    }
+
+    public boolean containsKey(final Object key) {
+        return indexOf(key) != -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Set<Map.Entry<String, List<V>>> entrySet() {
+        final Set<Map.Entry<String, List<V>>> entrySet = this.entrySet;
+        if (entrySet != null) {
+            return entrySet;
+        }
+        return this.entrySet = new AbstractSet<Map.Entry<String, List<V>>>() {
+            public Iterator<Map.Entry<String, List<V>>> iterator() {
+                return new Iterator<Map.Entry<String, List<V>>>() {
+                    private int idx = advance(0);
+
+                    private int advance(int idx) {
+                        final String[] keys = PathIndex.this.keys;
+                        while (idx < keys.length && keys[idx] == null) {
+                            idx++;
+                        }
+                        return idx;
+                    }
+
+                    public boolean hasNext() {
+                        return idx < keys.length;
+                    }
+
+                    @SuppressWarnings({ "unchecked" })
+                    public Map.Entry<String, List<V>> next() {
+                        final int idx = this.idx;
+                        if (idx >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        this.idx = advance(idx + 1);
+                        return new SimpleImmutableEntry<String, List<V>>(keys[idx], (List<V>) values[idx]);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -40,8 +40,8 @@ final class Paths<T, A> {
 
     Paths(final A[] sourceList, final Map<String, List<T>> allPaths, final Map<String, List<T>> exportedPaths) {
         this.sourceList = sourceList;
-        this.allPaths = allPaths;
-        this.exportedPaths = exportedPaths;
+        this.allPaths = PathIndex.of(allPaths);
+        this.exportedPaths = PathIndex.of(exportedPaths);
     }
 
     Map<String, List<T>> getAllPaths() {
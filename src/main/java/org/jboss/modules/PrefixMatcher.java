@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable matcher which determines whether a string starts with any one of a fixed set of prefixes.  The
+ * prefixes are compiled into a character trie, so a query costs time proportional to the length of the matched
+ * prefix regardless of how many prefixes there are, and never allocates.
+ */
+final class PrefixMatcher {
+
+    private static final char[] NO_CHARS = new char[0];
+    private static final int[] NO_INTS = new int[0];
+
+    /**
+     * The sorted transition characters of each node.
+     */
+    private final char[][] keys;
+    /**
+     * The child node indexes of each node, parallel to {@link #keys}.
+     */
+    private final int[][] children;
+    /**
+     * Whether each node ends a prefix.
+     */
+    private final boolean[] terminal;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param prefixes the prefixes to match
+     */
+    PrefixMatcher(final String[] prefixes) {
+        final List<StringBuilder> nodeKeys = new ArrayList<StringBuilder>();
+        final List<List<Integer>> nodeChildren = new ArrayList<List<Integer>>();
+        final List<Boolean> nodeTerminal = new ArrayList<Boolean>();
+        nodeKeys.add(new StringBuilder());
+        nodeChildren.add(new ArrayList<Integer>());
+        nodeTerminal.add(Boolean.FALSE);
+        for (String prefix : prefixes) {
+            int node = 0;
+            for (int i = 0; i < prefix.length(); i ++) {
+                final char c = prefix.charAt(i);
+                final StringBuilder k = nodeKeys.get(node);
+                final int idx = k.indexOf(String.valueOf(c));
+                if (idx == -1) {
+                    final int child = nodeKeys.size();
+                    nodeKeys.add(new StringBuilder());
+                    nodeChildren.add(new ArrayList<Integer>());
+                    nodeTerminal.add(Boolean.FALSE);
+                    k.append(c);
+                    nodeChildren.get(node).add(Integer.valueOf(child));
+                    node = child;
+                } else {
+                    node = nodeChildren.get(node).get(idx).intValue();
+                }
+            }
+            nodeTerminal.set(node, Boolean.TRUE);
+        }
+        final int size = nodeKeys.size();
+        keys = new char[size][];
+        children = new int[size][];
+        terminal = new boolean[size];
+        for (int node = 0; node < size; node ++) {
+            final StringBuilder k = nodeKeys.get(node);
+            final List<Integer> c = nodeChildren.get(node);
+            final int cnt = k.length();
+            // sort the transitions so that lookups can use a binary search
+            final long[] sorted = new long[cnt];
+            for (int i = 0; i < cnt; i ++) {
+                sorted[i] = (long) k.charAt(i) << 32 | c.get(i).intValue();
+            }
+            Arrays.sort(sorted);
+            final char[] nodeKeyArray = cnt == 0 ? NO_CHARS : new char[cnt];
+            final int[] nodeChildArray = cnt == 0 ? NO_INTS : new int[cnt];
+            for (int i = 0; i < cnt; i ++) {
+                nodeKeyArray[i] = (char) (sorted[i] >>> 32);
+                nodeChildArray[i] = (int) sorted[i];
+            }
+            keys[node] = nodeKeyArray;
+            children[node] = nodeChildArray;
+            terminal[node] = nodeTerminal.get(node).booleanValue();
+        }
+    }
+
+    /**
+     * Determine whether the given string starts with any of this matcher's prefixes.
+     *
+     * @param name the string to test
+     * @return {@code true} if some prefix matches
+     */
+    boolean matches(final String name) {
+        return matches(name, -1);
+    }
+
+    /**
+     * Determine whether the given string, followed by the given extra character, starts with any of this
+     * matcher's prefixes.  This allows e.g. a package name to be tested against prefixes ending in {@code '.'}
+     * without building a new string.
+     *
+     * @param name the string to test
+     * @param suffix the character which logically follows {@code name}
+     * @return {@code true} if some prefix matches
+     */
+    boolean matches(final String name, final char suffix) {
+        return matches(name, (int) suffix);
+    }
+
+    private boolean matches(final String name, final int suffix) {
+        final char[][] keys = this.keys;
+        final int[][] children = this.children;
+        final boolean[] terminal = this.terminal;
+        final int length = name.length();
+        final int end = suffix == -1 ? length : length + 1;
+        int node = 0;
+        for (int i = 0; i < end; i ++) {
+            if (terminal[node]) {
+                return true;
+            }
+            final int idx = Arrays.binarySearch(keys[node], i < length ? name.charAt(i) : (char) suffix);
+            if (idx < 0) {
+                return false;
+            }
+            node = children[node][idx];
+        }
+        return terminal[node];
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Inflater;
+
+/**
+ * Reading of class and resource bytes into arrays of their exact size.  A small scratch buffer is kept per thread and
+ * inflaters are kept in a small shared pool, so that defining a class allocates little more than its byte array.
+ */
+final class ResourceBytes {
+
+    private static final int BUFFER_SIZE = 16384;
+    private static final int MAX_POOLED_SIZE = 1 << 16;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(Runtime.getRuntime().availableProcessors());
+
+    private ResourceBytes() {
+    }
+
+    /**
+     * Read exactly the given number of bytes from a stream.
+     *
+     * @param is the stream
+     * @param size the number of bytes to read
+     * @return the bytes, or fewer if the stream ends early
+     * @throws IOException if reading fails
+     */
+    static byte[] read(final InputStream is, final int size) throws IOException {
+        final byte[] bytes = new byte[size];
+        int a = 0, res;
+        while (a < size && (res = is.read(bytes, a, size - a)) > 0) {
+            a += res;
+        }
+        return a == size ? bytes : Arrays.copyOf(bytes, a);
+    }
+
+    /**
+     * Read a stream of unknown size to its end.
+     *
+     * @param is the stream
+     * @return the bytes
+     * @throws IOException if reading fails
+     */
+    static byte[] readAll(final InputStream is) throws IOException {
+        final byte[] buf = BUFFERS.get().getScratch(BUFFER_SIZE);
+        byte[] bytes = null;
+        int size = 0, res;
+        while ((res = is.read(buf, 0, buf.length)) > 0) {
+            if (bytes == null) {
+                bytes = new byte[res];
+            } else if (size + res > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + res, bytes.length << 1));
+            }
+            System.arraycopy(buf, 0, bytes, size, res);
+            size += res;
+        }
+        return bytes == null ? new byte[0] : size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+    }
+
+    /**
+     * Read a file with a single open, sized by the open file itself.
+     *
+     * @param path the file
+     * @return the bytes, or {@code null} if the file does not exist or is not a regular file
+     * @throws IOException if reading fails
+     */
+    static byte[] read(final Path path) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (FileSystemException e) {
+            // a parent which is a file is a miss too (not always reported as NotDirectoryException); access denied and
+            // other failures are real errors
+            if (e instanceof NotDirectoryException || hasFileAncestor(path)) {
+                return null;
+            }
+            throw e;
+        }
+        try {
+            final long size = channel.size();
+            if (size > (long) Integer.MAX_VALUE) {
+                throw new IOException("Resource is too large to be a valid class file");
+            }
+            final byte[] bytes = new byte[(int) size];
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                    // keep reading
+                }
+            } catch (IOException e) {
+                if (Files.isDirectory(path)) {
+                    return null;
+                }
+                throw e;
+            }
+            return buffer.hasRemaining() ? Arrays.copyOf(bytes, buffer.position()) : bytes;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean hasFileAncestor(final Path path) {
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (Files.isRegularFile(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get this thread's scratch buffer, of at least the given size.  The buffer must not be used after any other
+     * method of this class is called on the same thread.
+     *
+     * @param size the minimum size
+     * @return the buffer
+     */
+    static byte[] getScratch(final int size) {
+        return BUFFERS.get().getScratch(size);
+    }
+
+    /**
+     * Get an inflater for raw deflate data from the pool.  The inflater must be given back with
+     * {@link #releaseInflater(Inflater)} and must not be ended.
+     *
+     * @return the inflater
+     */
+    static Inflater getInflater() {
+        final Inflater inflater = INFLATERS.poll();
+        return inflater == null ? new Inflater(true) : inflater;
+    }
+
+    /**
+     * Give an inflater back to the pool, or end it if the pool is full.
+     *
+     * @param inflater the inflater
+     */
+    static void releaseInflater(final Inflater inflater) {
+        // also drops the reference to the input buffer
+        inflater.reset();
+        if (! INFLATERS.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    static final class Buffers {
+        private byte[] scratch;
+
+        byte[] getScratch(final int size) {
+            if (size > MAX_POOLED_SIZE) {
+                // don't keep huge buffers around
+                return new byte[size];
+            }
+            byte[] scratch = this.scratch;
+            if (scratch == null || scratch.length < size) {
+                // grow in whole buffer sizes, so a few large entries do not cause repeated allocation
+                this.scratch = scratch = new byte[(Math.max(size, BUFFER_SIZE) + BUFFER_SIZE - 1) / BUFFER_SIZE * BUFFER_SIZE];
+            }
+            return scratch;
+        }
+    }
+}
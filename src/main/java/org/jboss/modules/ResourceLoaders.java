@@ -23,7 +23,9 @@
 package org.jboss.modules;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.AccessController;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import org.jboss.modules.filter.PathFilter;
 
@@ -36,9 +38,25 @@ import org.jboss.modules.filter.PathFilter;
  */
 public final class ResourceLoaders {
     static final boolean WRITE_INDEXES;
+    static final boolean MAPPED_JARS;
+    static final boolean ENTRY_FILTERS;
+    static final boolean DIRECTORY_ENTRY_FILTERS;
+    static final boolean PARALLEL_INDEX;
+    static final boolean SHARE_JARS;
+
+    /**
+     * Shared JAR files, by canonical path.
+     */
+    static final ConcurrentHashMap<String, SharedJarFile> SHARED_JAR_FILES = new ConcurrentHashMap<String, SharedJarFile>();
 
     static {
         WRITE_INDEXES = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.write-indexes", "true")));
+        MAPPED_JARS = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.mapped-jars", "false")));
+        ENTRY_FILTERS = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.entry-filters", "true")));
+        // files may be added to an exploded root at any time, so its entries are only filtered on request
+        DIRECTORY_ENTRY_FILTERS = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.directory-entry-filters", "false")));
+        PARALLEL_INDEX = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.parallel-index", "false")));
+        SHARE_JARS = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.share-jars", "true")));
     }
 
     private ResourceLoaders() {
@@ -68,6 +86,100 @@ public final class ResourceLoaders {
         return new JarFileResourceLoader(name, jarFile);
     }
 
+    /**
+     * Create a JAR-backed resource loader for a JAR file.  All loaders created this way for the same file share a
+     * single {@link JarFile}, which is closed once the last of them, and every resource and stream obtained from
+     * them, has been garbage collected.  If the file has been replaced since it was opened, new loaders get a fresh
+     * {@code JarFile} while existing ones keep the old one.  Existing loaders can only keep reading if the file was
+     * replaced by renaming a new file over it; a JAR which is rewritten in place is broken for them.
+     * JAR resource loaders do not have native library support.  Created classes have a code source with a
+     * {@code jar:} URL; nested JARs are not supported.
+     * <p>
+     * If the {@code jboss.modules.share-jars} system property is {@code false}, each loader opens its own
+     * {@code JarFile}.
+     *
+     * @param name the name of the resource root
+     * @param file the backing JAR file
+     * @return the resource loader
+     * @throws IOException if the JAR file cannot be opened
+     */
+    public static ResourceLoader createSharedJarResourceLoader(final String name, final File file) throws IOException {
+        if (! SHARE_JARS) {
+            return new JarFileResourceLoader(name, new JarFile(file, true));
+        }
+        final SharedJarFile sharedJarFile = acquireJarFile(file);
+        final JarFileResourceLoader loader;
+        try {
+            loader = new JarFileResourceLoader(name, sharedJarFile.getJarFile());
+        } catch (RuntimeException e) {
+            sharedJarFile.release();
+            throw e;
+        } catch (Error e) {
+            sharedJarFile.release();
+            throw e;
+        }
+        sharedJarFile.track(loader);
+        return loader;
+    }
+
+    /**
+     * Acquire a reference to the shared JAR for a file, opening it if it is not open yet or if the file changed since
+     * it was opened.  The caller must release the reference or hand it to a resource loader.
+     *
+     * @param file the JAR file
+     * @return the shared JAR, with one reference acquired
+     * @throws IOException if the JAR file cannot be opened
+     */
+    static SharedJarFile acquireJarFile(final File file) throws IOException {
+        final String path = file.getCanonicalPath();
+        for (;;) {
+            final long modified = file.lastModified();
+            final long length = file.length();
+            SharedJarFile sharedJarFile = SHARED_JAR_FILES.get(path);
+            if (sharedJarFile != null && ! sharedJarFile.isCurrent(modified, length)) {
+                // replaced on disk; existing users keep the old one until they release it
+                SHARED_JAR_FILES.remove(path, sharedJarFile);
+                continue;
+            }
+            if (sharedJarFile == null) {
+                final SharedJarFile newJarFile = new SharedJarFile(path, new JarFile(file, true), modified, length);
+                sharedJarFile = SHARED_JAR_FILES.putIfAbsent(path, newJarFile);
+                if (sharedJarFile == null) {
+                    sharedJarFile = newJarFile;
+                } else {
+                    newJarFile.close();
+                }
+            }
+            if (sharedJarFile.acquire()) {
+                return sharedJarFile;
+            }
+            // closed concurrently by its last user
+            SHARED_JAR_FILES.remove(path, sharedJarFile);
+        }
+    }
+
+    /**
+     * Create a JAR-backed resource loader which memory-maps the JAR file instead of opening it as a {@link JarFile}.
+     * Stored entries are read straight from the mapping, and opening the JAR does not build per-entry heap
+     * structures.  Signed JARs and ZIP64 archives get a regular JAR resource loader instead.  Created classes have a
+     * code source with a {@code jar:} URL; nested JARs are not supported.
+     * <p>
+     * JAR resource roots of {@code module.xml} files use this loader only if the {@code jboss.modules.mapped-jars}
+     * system property is {@code true}; by default they use a {@link JarFile}.
+     * <p>
+     * The mapping is not released until the loader is garbage collected.  If the file changes, the loader switches to
+     * a {@code JarFile} for the new file, but a JAR which is truncated or rewritten in place while an entry is being
+     * read may still crash the JVM, so mapped JARs must only be replaced by renaming a new file over them.
+     *
+     * @param name the name of the resource root
+     * @param file the backing JAR file
+     * @return the resource loader
+     * @throws IOException if the JAR file cannot be read
+     */
+    public static ResourceLoader createMappedJarResourceLoader(final String name, final File file) throws IOException {
+        return MappedJarResourceLoader.create(name, file);
+    }
+
     /**
      * Create a filtered view of a resource loader, which allows classes to be included or excluded on a name basis.
      * The given filter is matched against the actual class or resource name, not the directory name.
@@ -0,0 +1,594 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary index of the paths of a resource root, stored next to the root as {@code <root>.idx}.
+ * <p>
+ * The file starts with a header holding a magic number, the format version, and a stamp of the root (its
+ * modification time, its size, and the hash of its absolute path).  A table of paths follows, each stored as the
+ * index of its parent plus its last segment, so that common prefixes are written and read only once.  For
+ * directory roots every path records the modification time of its directory, which changes whenever a directory
+ * is added to or removed from it; an optional listing of the entries directly in each path may follow.  A CRC-32
+ * of everything before it ends the file.
+ * <p>
+ * Indexes are written to a temporary file which is then renamed over the index, so readers never see a partly
+ * written index, and are read through a mapped buffer.  An index whose stamp does not match its root is ignored.
+ */
+final class ResourceRootIndex {
+    static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x4A4D5249;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_ENTRIES = 2;
+
+    private static final int PATH_LISTED = 1;
+
+    /**
+     * Roots and directories modified this recently are not indexed, as a further change within the resolution of
+     * the file system's timestamps would go unnoticed.
+     */
+    private static final long RACY_WINDOW = 2000L;
+
+    private final String[] paths;
+    private final boolean[] listed;
+    private final String[][] entries;
+
+    private ResourceRootIndex(final String[] paths, final boolean[] listed, final String[][] entries) {
+        this.paths = paths;
+        this.listed = listed;
+        this.entries = entries;
+    }
+
+    /**
+     * Get the index file of a resource root.
+     *
+     * @param root the root JAR or directory
+     * @return the index file
+     */
+    static File getIndexFile(final File root) {
+        return new File(root.getPath() + SUFFIX);
+    }
+
+    /**
+     * Get the indexed paths.
+     *
+     * @param index the collection to add the paths to
+     * @param relativePath the path within the root to return paths relative to, or {@code null} for all paths
+     * @return the collection
+     */
+    Collection<String> getPaths(final Collection<String> index, final String relativePath) {
+        final String[] paths = this.paths;
+        final boolean[] listed = this.listed;
+        final String prefix = relativePath == null ? null : relativePath + "/";
+        for (int i = 0; i < paths.length; i ++) {
+            if (listed[i]) {
+                final String path = paths[i];
+                if (prefix == null) {
+                    index.add(path);
+                } else if (path.startsWith(prefix)) {
+                    index.add(path.substring(prefix.length()));
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Get the names of the entries directly within each path, if the index was read with its entry listing.
+     *
+     * @return the map of path to entry names, or {@code null} if there is no listing
+     */
+    Map<String, List<String>> getEntries() {
+        final String[][] entries = this.entries;
+        if (entries == null) {
+            return null;
+        }
+        final Map<String, List<String>> map = new TreeMap<String, List<String>>();
+        for (int i = 0; i < paths.length; i ++) {
+            if (entries[i].length > 0) {
+                final List<String> list = new ArrayList<String>(entries[i].length);
+                for (String entry : entries[i]) {
+                    list.add(entry);
+                }
+                map.put(paths[i], list);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Compute a stamp of a resource root.  For a JAR root the stamp is derived from its modification time and size.
+     * For a directory root it combines the modification times of every directory in the tree, as recorded by a valid
+     * index or else found by walking the tree.  Both follow symbolic links to directories and skip links back up the
+     * tree, so an unchanged tree has the same stamp either way.  The stamp changes whenever a file or directory is
+     * added, removed or renamed anywhere below the root.  Rewriting an existing file of a directory root in place
+     * does not change it.
+     *
+     * @param root the root JAR or directory
+     * @return the stamp
+     */
+    static long getStamp(final File root) {
+        if (! root.isDirectory()) {
+            return root.lastModified() * 31 + root.length();
+        }
+        long stamp = root.lastModified();
+        final ResourceRootIndex index = read(root, false);
+        if (index != null) {
+            // reading the index already checked that these times are current
+            for (String path : index.paths) {
+                if (! path.isEmpty()) {
+                    stamp += getPathStamp(path, new File(root, path).lastModified());
+                }
+            }
+        } else {
+            stamp += getTreeStamp(root);
+        }
+        return stamp;
+    }
+
+    private static long getTreeStamp(final File root) {
+        final Path rootPath = root.toPath();
+        final long[] stamp = new long[1];
+        try {
+            // follow links and skip loops the same way the index builder does, so both give the same stamp
+            Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                    if (! dir.equals(rootPath)) {
+                        final String name = rootPath.relativize(dir).toString();
+                        stamp[0] += getPathStamp(File.separatorChar == '/' ? name : name.replace(File.separatorChar, '/'), attrs.lastModifiedTime().toMillis());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    // unreadable, or a link back up the tree; skip it
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // the visitor swallows failures
+            throw new IllegalStateException(e);
+        }
+        return stamp[0];
+    }
+
+    private static long getPathStamp(final String path, final long modified) {
+        // summed, so that the order in which directories are visited does not matter
+        return path.hashCode() * 0x9E3779B97F4A7C15L ^ modified;
+    }
+
+    /**
+     * Create an entry filter from the entry listing, if the index was read with one.
+     *
+     * @param relativePath the path within the root which entry names are relative to, or {@code null} for none
+     * @return the filter, or {@code null} if there is no listing
+     */
+    EntryFilter createEntryFilter(final String relativePath) {
+        final String[][] entries = this.entries;
+        if (entries == null) {
+            return null;
+        }
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < paths.length; i ++) {
+            addNames(names, relativePath, paths[i], Arrays.asList(entries[i]));
+        }
+        return EntryFilter.create(names);
+    }
+
+    static void addNames(final List<String> names, final String relativePath, final String path, final Collection<String> entries) {
+        final String name;
+        if (relativePath == null) {
+            name = path;
+        } else if (path.equals(relativePath)) {
+            name = "";
+        } else if (path.startsWith(relativePath) && path.length() > relativePath.length() && path.charAt(relativePath.length()) == '/') {
+            name = path.substring(relativePath.length() + 1);
+        } else {
+            return;
+        }
+        if (name.length() > 0) {
+            names.add(name);
+        }
+        for (String entry : entries) {
+            names.add(name.length() == 0 ? entry : name + "/" + entry);
+        }
+    }
+
+    /**
+     * Read the index of a resource root, if there is one and it is current.
+     *
+     * @param root the root JAR or directory
+     * @param withEntries {@code true} to read the entry listing as well
+     * @return the index, or {@code null} if there is no valid index which matches the current state of the root
+     */
+    static ResourceRootIndex read(final File root, final boolean withEntries) {
+        final File indexFile = getIndexFile(root);
+        final ByteBuffer buffer;
+        try {
+            final FileInputStream is = new FileInputStream(indexFile);
+            try {
+                final FileChannel channel = is.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            // no index
+            return null;
+        }
+        try {
+            return read(buffer, root, withEntries);
+        } catch (BufferUnderflowException e) {
+            // truncated
+            return null;
+        } catch (IllegalArgumentException e) {
+            // corrupt
+            return null;
+        }
+    }
+
+    private static ResourceRootIndex read(final ByteBuffer buffer, final File root, final boolean withEntries) {
+        if (buffer.limit() < 4) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        final ByteBuffer body = buffer.duplicate();
+        body.limit(buffer.limit() - 4);
+        // the buffer is mapped, so it has no array to checksum in place
+        final byte[] chunk = new byte[Math.min(8192, body.remaining())];
+        while (body.hasRemaining()) {
+            final int count = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+            return null;
+        }
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            return null;
+        }
+        final int flags = buffer.get();
+        final boolean directory = (flags & FLAG_DIRECTORY) != 0;
+        if (directory != root.isDirectory()) {
+            return null;
+        }
+        if (buffer.getLong() != root.lastModified() || buffer.getLong() != getSize(root, directory) || buffer.getInt() != getHash(root)) {
+            // the root has changed
+            return null;
+        }
+        final int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            return null;
+        }
+        final boolean hasEntries = (flags & FLAG_ENTRIES) != 0;
+        final String[] paths = new String[count];
+        final boolean[] listed = new boolean[count];
+        final String[][] entries = withEntries && hasEntries ? new String[count][] : null;
+        for (int i = 0; i < count; i ++) {
+            final int parent = buffer.getInt();
+            listed[i] = (buffer.get() & PATH_LISTED) != 0;
+            final String segment = getString(buffer);
+            if (parent == -1) {
+                paths[i] = segment;
+            } else if (parent >= 0 && parent < i) {
+                paths[i] = paths[parent].isEmpty() ? segment : paths[parent] + "/" + segment;
+            } else {
+                return null;
+            }
+            if (directory && buffer.getLong() != new File(root, paths[i]).lastModified()) {
+                // a directory was added or removed under this one
+                return null;
+            }
+            if (hasEntries) {
+                final int entryCount = buffer.getInt();
+                if (entryCount < 0 || entryCount > buffer.remaining()) {
+                    return null;
+                }
+                if (entries == null) {
+                    for (int j = 0; j < entryCount; j ++) {
+                        final int length = buffer.getShort() & 0xffff;
+                        buffer.position(buffer.position() + length);
+                    }
+                } else {
+                    final String[] names = new String[entryCount];
+                    for (int j = 0; j < entryCount; j ++) {
+                        names[j] = getString(buffer);
+                    }
+                    entries[i] = names;
+                }
+            }
+        }
+        return new ResourceRootIndex(paths, listed, entries);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final int length = buffer.getShort() & 0xffff;
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long getSize(final File root, final boolean directory) {
+        return directory ? 0L : root.length();
+    }
+
+    private static int getHash(final File root) {
+        return root.getAbsolutePath().hashCode();
+    }
+
+    /**
+     * A builder for the index of a resource root, to which several threads may add at once.  Paths of directory
+     * roots must be added before their directories are listed, so that a change made during the scan is caught the
+     * next time the index is read.
+     */
+    static final class Builder {
+        private final File root;
+        private final boolean directory;
+        private final long rootModified;
+        private final TreeMap<String, PathEntry> paths = new TreeMap<String, PathEntry>();
+        private boolean racy;
+
+        /**
+         * Construct a new instance.  This must be done before the root is scanned.
+         *
+         * @param root the root JAR or directory
+         */
+        Builder(final File root) {
+            this.root = root;
+            directory = root.isDirectory();
+            rootModified = root.lastModified();
+            racy = isRacy(rootModified);
+        }
+
+        private static boolean isRacy(final long modified) {
+            return modified == 0L || modified > System.currentTimeMillis() - RACY_WINDOW;
+        }
+
+        private PathEntry getPath(final String name) {
+            return getPath(name, -1L);
+        }
+
+        private PathEntry getPath(final String name, final long modified) {
+            PathEntry path = paths.get(name);
+            if (path == null) {
+                paths.put(name, path = new PathEntry());
+                if (directory) {
+                    path.modified = modified == -1L ? new File(root, name).lastModified() : modified;
+                    racy |= isRacy(path.modified);
+                }
+            }
+            return path;
+        }
+
+        /**
+         * Add a path of the root.
+         *
+         * @param name the path
+         */
+        synchronized void addPath(final String name) {
+            getPath(name).listed = true;
+        }
+
+        /**
+         * Add a directory of a directory root, whose modification time was read before it was listed.
+         *
+         * @param name the path
+         * @param modified the modification time of the directory
+         */
+        synchronized void addPath(final String name, final long modified) {
+            getPath(name, modified).listed = true;
+        }
+
+        /**
+         * Add an entry directly within a path.
+         *
+         * @param name the path
+         * @param entry the entry name, relative to the path
+         */
+        synchronized void addEntry(final String name, final String entry) {
+            getPath(name).entries.add(entry);
+        }
+
+        /**
+         * Get the added paths.
+         *
+         * @param index the collection to add the paths to
+         * @param relativePath the path within the root to return paths relative to, or {@code null} for all paths
+         * @return the collection
+         */
+        Collection<String> getPaths(final Collection<String> index, final String relativePath) {
+            final String prefix = relativePath == null ? null : relativePath + "/";
+            for (Map.Entry<String, PathEntry> entry : paths.entrySet()) {
+                if (entry.getValue().listed) {
+                    final String path = entry.getKey();
+                    if (prefix == null) {
+                        index.add(path);
+                    } else if (path.startsWith(prefix)) {
+                        index.add(path.substring(prefix.length()));
+                    }
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Create an entry filter from the added paths and entries.
+         *
+         * @param relativePath the path within the root which entry names are relative to, or {@code null} for none
+         * @return the filter
+         */
+        EntryFilter createEntryFilter(final String relativePath) {
+            final List<String> names = new ArrayList<String>();
+            for (Map.Entry<String, PathEntry> entry : paths.entrySet()) {
+                addNames(names, relativePath, entry.getKey(), entry.getValue().entries);
+            }
+            return EntryFilter.create(names);
+        }
+
+        /**
+         * Write the index atomically, unless the root changed too recently to be indexed reliably.
+         *
+         * @return {@code true} if the index was written
+         */
+        boolean write() {
+            if (racy) {
+                return false;
+            }
+            // every path needs its parent in the table
+            for (String name : new ArrayList<String>(paths.keySet())) {
+                int idx;
+                while ((idx = name.lastIndexOf('/')) != -1) {
+                    name = name.substring(0, idx);
+                    if (paths.containsKey(name)) break;
+                    getPath(name);
+                }
+            }
+            if (racy) {
+                return false;
+            }
+            final File indexFile = getIndexFile(root);
+            File tempFile = null;
+            try {
+                tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+                final CRC32 crc = new CRC32();
+                final FileOutputStream fos = new FileOutputStream(tempFile);
+                try {
+                    final CheckedOutputStream cos = new CheckedOutputStream(fos, crc);
+                    final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(cos));
+                    writeTo(os);
+                    os.flush();
+                    os.writeInt((int) crc.getValue());
+                    os.close();
+                } finally {
+                    fos.close();
+                }
+                try {
+                    Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                tempFile = null;
+                return true;
+            } catch (IOException e) {
+                // failed, ignore
+                return false;
+            } finally {
+                if (tempFile != null) {
+                    // well, we tried...
+                    tempFile.delete();
+                }
+            }
+        }
+
+        private void writeTo(final DataOutputStream os) throws IOException {
+            boolean hasEntries = false;
+            for (PathEntry path : paths.values()) {
+                hasEntries |= ! path.entries.isEmpty();
+            }
+            os.writeInt(MAGIC);
+            os.writeByte(VERSION);
+            os.writeByte((directory ? FLAG_DIRECTORY : 0) | (hasEntries ? FLAG_ENTRIES : 0));
+            os.writeLong(rootModified);
+            os.writeLong(getSize(root, directory));
+            os.writeInt(getHash(root));
+            os.writeInt(paths.size());
+            // sorted order puts every parent before its children
+            final Map<String, Integer> indexes = new HashMap<String, Integer>();
+            for (Map.Entry<String, PathEntry> entry : paths.entrySet()) {
+                final String name = entry.getKey();
+                final PathEntry path = entry.getValue();
+                final int idx = name.lastIndexOf('/');
+                final int parent;
+                final String segment;
+                if (idx == -1) {
+                    parent = name.isEmpty() || ! paths.containsKey("") ? -1 : indexes.get("").intValue();
+                    segment = name;
+                } else {
+                    parent = indexes.get(name.substring(0, idx)).intValue();
+                    segment = name.substring(idx + 1);
+                }
+                indexes.put(name, Integer.valueOf(indexes.size()));
+                os.writeInt(parent);
+                os.writeByte(path.listed ? PATH_LISTED : 0);
+                writeString(os, segment);
+                if (directory) {
+                    os.writeLong(path.modified);
+                }
+                if (hasEntries) {
+                    os.writeInt(path.entries.size());
+                    for (String entryName : path.entries) {
+                        writeString(os, entryName);
+                    }
+                }
+            }
+        }
+
+        private static void writeString(final DataOutputStream os, final String string) throws IOException {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xffff) {
+                throw new IOException("Path too long to index");
+            }
+            os.writeShort(bytes.length);
+            os.write(bytes);
+        }
+    }
+
+    private static final class PathEntry {
+        boolean listed;
+        long modified;
+        final Collection<String> entries = new HashSet<String>();
+    }
+}
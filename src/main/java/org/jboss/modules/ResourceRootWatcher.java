@@ -0,0 +1,420 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of exploded resource roots and refreshes the modules which use them when they change.
+ * A single thread serves every watched root; it blocks on one {@link WatchService} while nothing changes, so idle
+ * roots cost no polling.
+ * <p>
+ * Change events are collected until none has arrived for the debounce interval, and then handled as one batch.  If
+ * a directory was added to or removed from a root, the resource loaders of the modules using that root are
+ * refreshed, which relinks them; if only files changed, the negative class caches and the root's entry filter are
+ * invalidated instead, since the set of paths is still the same.
+ * <p>
+ * Watching is enabled with the {@code jboss.modules.watch-resource-roots} system property.
+ */
+final class ResourceRootWatcher implements Runnable {
+    static final boolean ENABLED;
+    private static final long DEBOUNCE;
+
+    static {
+        ENABLED = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.watch-resource-roots", "false")));
+        DEBOUNCE = Long.parseLong(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.watch-debounce", "250")));
+    }
+
+    /**
+     * A batch is handled after this many debounce intervals even if events keep arriving.
+     */
+    private static final int MAX_DEBOUNCE_ROUNDS = 20;
+
+    private static final WatchEvent.Kind<?>[] KINDS = {
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY,
+    };
+
+    private final long debounce;
+    private final String threadName;
+    private final Map<Path, Root> roots = new HashMap<Path, Root>();
+    private final Map<Module, Set<Root>> modules = new IdentityHashMap<Module, Set<Root>>();
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private final Map<Path, WatchKey> directories = new HashMap<Path, WatchKey>();
+    private WatchService watchService;
+    private Thread thread;
+
+    ResourceRootWatcher(final long debounce, final String threadName) {
+        this.debounce = debounce;
+        this.threadName = threadName;
+    }
+
+    private static final class InstanceHolder {
+        static final ResourceRootWatcher INSTANCE = new ResourceRootWatcher(DEBOUNCE, "Module resource root watcher");
+    }
+
+    /**
+     * Watch the exploded roots of a module, if watching is enabled.
+     *
+     * @param module the module
+     * @param resourceLoaders the module's current resource loaders
+     */
+    static void watch(final Module module, final ResourceLoaderSpec[] resourceLoaders) {
+        if (ENABLED) {
+            final List<FileResourceLoader> loaders = new ArrayList<FileResourceLoader>();
+            for (ResourceLoaderSpec spec : resourceLoaders) {
+                ResourceLoader loader = spec.getResourceLoader();
+                if (loader instanceof FilteredResourceLoader) {
+                    loader = ((FilteredResourceLoader) loader).getLoader();
+                }
+                if (loader instanceof FileResourceLoader) {
+                    loaders.add((FileResourceLoader) loader);
+                }
+            }
+            InstanceHolder.INSTANCE.register(module, loaders);
+        }
+    }
+
+    /**
+     * Stop watching the roots of a module, if watching is enabled.
+     *
+     * @param module the module
+     */
+    static void unwatch(final Module module) {
+        if (ENABLED) {
+            InstanceHolder.INSTANCE.register(module, Collections.<FileResourceLoader>emptyList());
+        }
+    }
+
+    /**
+     * Set the exploded roots of a module, replacing any which were registered for it before.
+     *
+     * @param module the module
+     * @param loaders the resource loaders of the module's exploded roots
+     */
+    synchronized void register(final Module module, final List<FileResourceLoader> loaders) {
+        final Set<Root> newRoots = Collections.newSetFromMap(new IdentityHashMap<Root, Boolean>());
+        for (FileResourceLoader loader : loaders) {
+            final Path path = loader.getRootPath().toAbsolutePath().normalize();
+            Root root = roots.get(path);
+            if (root == null) {
+                if (! startWatching()) {
+                    return;
+                }
+                root = new Root(path);
+                roots.put(path, root);
+                registerTree(path);
+            }
+            List<FileResourceLoader> rootLoaders = newRoots.add(root) ? null : root.modules.get(module);
+            if (rootLoaders == null) {
+                // replaces the loaders the module had for this root before
+                root.modules.put(module, rootLoaders = new ArrayList<FileResourceLoader>(1));
+            }
+            rootLoaders.add(loader);
+        }
+        final Set<Root> oldRoots = newRoots.isEmpty() ? modules.remove(module) : modules.put(module, newRoots);
+        if (oldRoots != null) for (Root root : oldRoots) {
+            if (! newRoots.contains(root)) {
+                root.modules.remove(module);
+                if (root.modules.isEmpty()) {
+                    roots.remove(root.path);
+                    cancelTree(root.path);
+                }
+            }
+        }
+    }
+
+    private boolean startWatching() {
+        if (watchService == null) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                Module.log.trace(e, "Failed to create a watch service for resource roots");
+                return false;
+            }
+            thread = AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+                public Thread run() {
+                    final Thread thread = new Thread(ResourceRootWatcher.this, threadName);
+                    thread.setDaemon(true);
+                    thread.start();
+                    return thread;
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Watch a directory and every directory below it.  Must be called with this object's lock held.
+     */
+    private void registerTree(final Path start) {
+        try {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                    if (! directories.containsKey(dir)) try {
+                        final WatchKey key = dir.register(watchService, KINDS);
+                        keys.put(key, dir);
+                        directories.put(dir, key);
+                    } catch (IOException e) {
+                        Module.log.trace(e, "Failed to watch directory %s", dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // the visitor swallows failures
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stop watching a directory and every directory below it which no other root still needs.  Must be called with
+     * this object's lock held.
+     */
+    private void cancelTree(final Path start) {
+        final Map<Path, WatchKey> directories = this.directories;
+        for (Path dir : new ArrayList<Path>(directories.keySet())) {
+            if (dir.startsWith(start) && getRoots(dir).isEmpty()) {
+                final WatchKey key = directories.remove(dir);
+                keys.remove(key);
+                key.cancel();
+            }
+        }
+    }
+
+    /**
+     * Get the watched roots which contain a path.  Must be called with this object's lock held.
+     */
+    private List<Root> getRoots(final Path path) {
+        List<Root> list = Collections.emptyList();
+        for (Path p = path; p != null; p = p.getParent()) {
+            final Root root = roots.get(p);
+            if (root != null) {
+                if (list.isEmpty()) {
+                    list = new ArrayList<Root>(1);
+                }
+                list.add(root);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Stop watching all roots, and release the watch service and its thread.
+     */
+    synchronized void close() {
+        roots.clear();
+        modules.clear();
+        keys.clear();
+        directories.clear();
+        if (watchService != null) {
+            try {
+                // the watcher thread exits when it sees the service closed
+                watchService.close();
+            } catch (IOException e) {
+                Module.log.trace(e, "Failed to close the watch service for resource roots");
+            }
+            watchService = null;
+            thread = null;
+        }
+    }
+
+    /**
+     * Get the number of resource loaders which are registered for a watched root.
+     *
+     * @param path the root path
+     * @return the number of loaders
+     */
+    synchronized int getLoaderCount(final Path path) {
+        final Root root = roots.get(path.toAbsolutePath().normalize());
+        int count = 0;
+        if (root != null) for (List<FileResourceLoader> list : root.modules.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of watched roots.
+     *
+     * @return the number of roots
+     */
+    synchronized int getRootCount() {
+        return roots.size();
+    }
+
+    Thread getThread() {
+        synchronized (this) {
+            return thread;
+        }
+    }
+
+    public void run() {
+        final WatchService watchService;
+        synchronized (this) {
+            watchService = this.watchService;
+        }
+        if (watchService == null) {
+            // closed before we started
+            return;
+        }
+        try {
+            for (;;) {
+                // block until something changes
+                WatchKey key = watchService.take();
+                final Map<Root, Boolean> changes = new IdentityHashMap<Root, Boolean>();
+                int rounds = 0;
+                do {
+                    handle(key, changes);
+                    key = rounds ++ < MAX_DEBOUNCE_ROUNDS ? watchService.poll(debounce, TimeUnit.MILLISECONDS) : null;
+                } while (key != null);
+                apply(changes);
+            }
+        } catch (InterruptedException e) {
+            // exit
+        } catch (ClosedWatchServiceException e) {
+            // exit
+        }
+    }
+
+    private synchronized void handle(final WatchKey key, final Map<Root, Boolean> changes) {
+        final Path dir = keys.get(key);
+        if (dir == null) {
+            // cancelled meanwhile
+            key.pollEvents();
+            key.reset();
+            return;
+        }
+        boolean structural = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            final WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost; assume the worst
+                structural = true;
+                registerTree(dir);
+                continue;
+            }
+            final Path child = dir.resolve((Path) event.context());
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                if (Files.isDirectory(child)) {
+                    structural = true;
+                    registerTree(child);
+                }
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                if (directories.containsKey(child)) {
+                    structural = true;
+                    cancelDeleted(child);
+                }
+            }
+        }
+        if (! key.reset()) {
+            // the directory itself is gone
+            structural = true;
+            cancelDeleted(dir);
+        }
+        for (Root root : getRoots(dir)) {
+            final Boolean old = changes.get(root);
+            changes.put(root, Boolean.valueOf(structural || old != null && old.booleanValue()));
+        }
+    }
+
+    private void cancelDeleted(final Path start) {
+        for (Path dir : new ArrayList<Path>(directories.keySet())) {
+            if (dir.startsWith(start)) {
+                final WatchKey key = directories.remove(dir);
+                keys.remove(key);
+                key.cancel();
+            }
+        }
+    }
+
+    private void apply(final Map<Root, Boolean> changes) {
+        final Set<Module> refresh = Collections.newSetFromMap(new IdentityHashMap<Module, Boolean>());
+        final Set<FileResourceLoader> loaders = new HashSet<FileResourceLoader>();
+        synchronized (this) {
+            for (Map.Entry<Root, Boolean> entry : changes.entrySet()) {
+                final Root root = entry.getKey();
+                for (List<FileResourceLoader> list : root.modules.values()) {
+                    loaders.addAll(list);
+                }
+                if (entry.getValue().booleanValue()) {
+                    refresh.addAll(root.modules.keySet());
+                }
+            }
+        }
+        // files may have appeared which lookups have already missed
+        for (FileResourceLoader loader : loaders) {
+            loader.invalidateEntryFilter();
+        }
+        for (Module module : refresh) {
+            try {
+                module.getModuleLoader().refreshChangedResourceLoaders(module);
+            } catch (Throwable t) {
+                Module.log.trace(t, "Failed to refresh resource loaders of %s", module);
+            }
+        }
+        // only after relinking, so that no miss against the old linkage survives
+        NegativeClassCache.invalidateAll();
+    }
+
+    static final class Root {
+        private final Path path;
+        /**
+         * The modules using this root, each with its current resource loaders for it.
+         */
+        private final Map<Module, List<FileResourceLoader>> modules = new IdentityHashMap<Module, List<FileResourceLoader>>();
+
+        Root(final Path path) {
+            this.path = path;
+        }
+    }
+}
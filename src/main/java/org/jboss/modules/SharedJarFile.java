@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.jar.JarFile;
+
+import org.jboss.modules.ref.PhantomReference;
+import org.jboss.modules.ref.Reaper;
+import org.jboss.modules.ref.Reference;
+
+/**
+ * A {@link JarFile} which is shared by every resource loader opened on the same canonical path.  Each user holds one
+ * reference; the JAR is closed and dropped from the registry in {@link ResourceLoaders} once the last reference is
+ * released, which happens when the resource loader holding it is garbage collected.  Resources obtained from the
+ * loader, and the streams opened on them, keep the loader reachable, so a stream can outlive the module which
+ * handed it out.
+ */
+final class SharedJarFile {
+    private static final AtomicIntegerFieldUpdater<SharedJarFile> countUpdater = AtomicIntegerFieldUpdater.newUpdater(SharedJarFile.class, "count");
+
+    private static final Reaper<ResourceLoader, SharedJarFile> reaper = new Reaper<ResourceLoader, SharedJarFile>() {
+        public void reap(final Reference<ResourceLoader, SharedJarFile> reference) {
+            final SharedJarFile sharedJarFile = reference.getAttachment();
+            sharedJarFile.owners.remove(reference);
+            sharedJarFile.release();
+        }
+    };
+
+    private final String path;
+    private final JarFile jarFile;
+    private final long modified;
+    private final long length;
+    // the phantom references must stay reachable until they are enqueued
+    private final Set<Reference<ResourceLoader, SharedJarFile>> owners = Collections.newSetFromMap(new ConcurrentHashMap<Reference<ResourceLoader, SharedJarFile>, Boolean>());
+    /**
+     * The number of references, or -1 once the JAR is closed.
+     */
+    @SuppressWarnings("unused")
+    private volatile int count;
+
+    SharedJarFile(final String path, final JarFile jarFile, final long modified, final long length) {
+        this.path = path;
+        this.jarFile = jarFile;
+        this.modified = modified;
+        this.length = length;
+    }
+
+    JarFile getJarFile() {
+        return jarFile;
+    }
+
+    /**
+     * Determine whether this JAR was opened on the file with the given attributes.  A JAR which was replaced on disk
+     * must not be handed out to new users.  Only a JAR replaced by renaming a new file over it can still be read by
+     * its existing users; one which is rewritten in place is broken for them.
+     *
+     * @param modified the current modification time of the file
+     * @param length the current length of the file
+     * @return {@code true} if the file is unchanged
+     */
+    boolean isCurrent(final long modified, final long length) {
+        return this.modified == modified && this.length == length;
+    }
+
+    /**
+     * Acquire a reference.
+     *
+     * @return {@code true} if the reference was acquired, {@code false} if the JAR is already closed
+     */
+    boolean acquire() {
+        int oldVal;
+        do {
+            oldVal = count;
+            if (oldVal == -1) {
+                return false;
+            }
+        } while (! countUpdater.compareAndSet(this, oldVal, oldVal + 1));
+        return true;
+    }
+
+    /**
+     * Tie an acquired reference to a resource loader, so that it is released once the loader is unreachable.
+     *
+     * @param owner the resource loader holding the reference
+     */
+    void track(final ResourceLoader owner) {
+        owners.add(new PhantomReference<ResourceLoader, SharedJarFile>(owner, this, reaper));
+    }
+
+    /**
+     * Release a reference, closing the JAR if it was the last one.
+     */
+    void release() {
+        if (countUpdater.decrementAndGet(this) == 0 && countUpdater.compareAndSet(this, 0, -1)) {
+            ResourceLoaders.SHARED_JAR_FILES.remove(path, this);
+            close();
+        }
+    }
+
+    /**
+     * Close the JAR without regard to its references; only used for instances which were never handed out.
+     */
+    void close() {
+        try {
+            jarFile.close();
+        } catch (IOException e) {
+            Module.log.trace(e, "Failed to close shared JAR %s", path);
+        }
+    }
+}
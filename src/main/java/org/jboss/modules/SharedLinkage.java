@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.security.AccessController;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The part of a module's linkage which is contributed by its dependencies on other modules and class loaders, shared
+ * by all modules of a module loader which declare equivalent dependencies.  A module's own local dependency is not
+ * part of the shared linkage; it is merged into a private copy of the path maps by each module.
+ * <p>
+ * Shared linkages are stamped with a generation which advances whenever the linkage or resource loaders of any
+ * module change, so that no module links against a stale shared linkage.  Sharing is enabled by default and can be
+ * disabled by setting {@code jboss.modules.shared-linkage} to {@code false}.
+ */
+final class SharedLinkage {
+    static final boolean ENABLED;
+
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    static {
+        ENABLED = Boolean.parseBoolean(AccessController.doPrivileged(new PropertyReadAction("jboss.modules.shared-linkage", "true")));
+    }
+
+    private final Key key;
+    private final int myGeneration;
+    private final Map<String, List<LocalLoader>> importedPaths;
+    private final Map<String, List<LocalLoader>> exportedPaths;
+    private final Module[] visitedModules;
+    // guarded by the module loader's shared linkage map
+    int refs;
+
+    SharedLinkage(final Key key, final int myGeneration, final Map<String, List<LocalLoader>> importedPaths, final Map<String, List<LocalLoader>> exportedPaths, final Module[] visitedModules) {
+        this.key = key;
+        this.myGeneration = myGeneration;
+        this.importedPaths = PathIndex.of(importedPaths);
+        this.exportedPaths = PathIndex.of(exportedPaths);
+        this.visitedModules = visitedModules;
+    }
+
+    static int currentGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Invalidate all shared linkages.  Must be called whenever the linkage or resource loaders of any module change.
+     */
+    static void invalidateAll() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Get the number of leading dependencies which can be shared, which is all of them up to the trailing local
+     * dependencies of the module itself.
+     *
+     * @param module the module being linked
+     * @param dependencies the module's dependencies
+     * @return the number of shareable dependencies, or {@code -1} if the dependencies cannot be shared
+     */
+    static int getShareableCount(final Module module, final Dependency[] dependencies) {
+        final LocalLoader localLoader = module.getClassLoaderPrivate().getLocalLoader();
+        int count = dependencies.length;
+        while (count > 0 && isLocal(dependencies[count - 1], localLoader)) {
+            count--;
+        }
+        if (count == 0) {
+            return -1;
+        }
+        for (int i = 0; i < count; i++) {
+            final Dependency dependency = dependencies[i];
+            if (isLocal(dependency, localLoader) || ! (dependency instanceof ModuleDependency || dependency instanceof LocalDependency || dependency instanceof ModuleClassLoaderDependency)) {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isLocal(final Dependency dependency, final LocalLoader localLoader) {
+        return dependency instanceof ModuleClassLoaderDependency && ((ModuleClassLoaderDependency) dependency).getLocalLoader() == localLoader;
+    }
+
+    Key getKey() {
+        return key;
+    }
+
+    boolean isCurrent() {
+        return myGeneration == generation.get();
+    }
+
+    Map<String, List<LocalLoader>> getImportedPaths() {
+        return importedPaths;
+    }
+
+    Map<String, List<LocalLoader>> getExportedPaths() {
+        return exportedPaths;
+    }
+
+    Module[] getVisitedModules() {
+        return visitedModules;
+    }
+
+    boolean hasVisited(final Module module) {
+        for (Module visited : visitedModules) {
+            if (visited == module) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The identity of a list of shareable dependencies.  Module loaders, local loaders and path sets are compared by
+     * identity; filters are compared by {@code equals}, which is identity unless the filter type defines otherwise.
+     */
+    static final class Key {
+        private final Object[] parts;
+        private final int hashCode;
+
+        Key(final Dependency[] dependencies, final int count) {
+            final Object[] parts = new Object[count * 9];
+            int i = 0;
+            for (int d = 0; d < count; d++) {
+                final Dependency dependency = dependencies[d];
+                parts[i++] = dependency.getImportFilter();
+                parts[i++] = dependency.getExportFilter();
+                parts[i++] = dependency.getResourceImportFilter();
+                parts[i++] = dependency.getResourceExportFilter();
+                parts[i++] = dependency.getClassImportFilter();
+                parts[i++] = dependency.getClassExportFilter();
+                if (dependency instanceof ModuleDependency) {
+                    final ModuleDependency moduleDependency = (ModuleDependency) dependency;
+                    parts[i++] = new Identity(moduleDependency.getModuleLoader());
+                    parts[i++] = moduleDependency.getIdentifier();
+                    parts[i++] = Boolean.valueOf(moduleDependency.isOptional());
+                } else if (dependency instanceof LocalDependency) {
+                    final LocalDependency localDependency = (LocalDependency) dependency;
+                    parts[i++] = new Identity(localDependency.getLocalLoader());
+                    parts[i++] = new Identity(localDependency.getPaths());
+                    parts[i++] = null;
+                } else {
+                    parts[i++] = new Identity(((ModuleClassLoaderDependency) dependency).getLocalLoader());
+                    parts[i++] = null;
+                    parts[i++] = null;
+                }
+            }
+            this.parts = parts;
+            hashCode = Arrays.hashCode(parts);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(final Object other) {
+            return other instanceof Key && equals((Key) other);
+        }
+
+        public boolean equals(final Key other) {
+            return this == other || other != null && hashCode == other.hashCode && Arrays.equals(parts, other.parts);
+        }
+    }
+
+    static final class Identity {
+        private final Object object;
+
+        Identity(final Object object) {
+            this.object = object;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(object);
+        }
+
+        public boolean equals(final Object other) {
+            return other instanceof Identity && ((Identity) other).object == object;
+        }
+    }
+}
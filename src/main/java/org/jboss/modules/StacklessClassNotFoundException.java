@@ -0,0 +1,49 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+/**
+ * A class-not-found exception which does not record a stack trace, and which builds its message only when it is
+ * requested.  Thrown on class lookup misses when stackless exceptions are enabled for the module loader.
+ *
+ * @see ModuleLoader#setStacklessExceptions(boolean)
+ */
+final class StacklessClassNotFoundException extends ClassNotFoundException {
+    private static final long serialVersionUID = 4713935423745342711L;
+
+    private final String className;
+    private final String moduleName;
+
+    StacklessClassNotFoundException(final String className, final String moduleName) {
+        this.className = className;
+        this.moduleName = moduleName;
+    }
+
+    public String getMessage() {
+        return className + " from [" + moduleName + "]";
+    }
+
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -37,6 +37,10 @@ final class ChildPathFilter implements PathFilter {
         return path.startsWith(prefix);
     }
 
+    String getPrefix() {
+        return prefix;
+    }
+
     public boolean equals(final Object obj) {
         return obj instanceof ChildPathFilter && equals((ChildPathFilter) obj);
     }
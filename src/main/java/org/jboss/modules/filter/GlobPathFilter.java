@@ -22,8 +22,7 @@
 
 package org.jboss.modules.filter;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 /**
  * Default implementation of PathFilter.  Uses glob based includes and excludes to determine whether to export.  
@@ -32,34 +31,20 @@ import java.util.regex.Pattern;
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 final class GlobPathFilter implements PathFilter {
-    private static final Pattern GLOB_PATTERN = Pattern.compile("(\\*\\*?)|(\\?)|(\\\\.)|(/+)|([^*?]+)");
+    private static final byte LITERAL = 0;
+    private static final byte ANY_CHAR = 1;
+    private static final byte STAR = 2;
+    private static final byte DOUBLE_STAR = 3;
+    private static final byte SLASHES = 4;
 
     private final String glob;
-    private final Pattern pattern;
+    private final byte[] kinds;
+    private final String[] literals;
+    private final boolean trailingSlash;
 
     /**
-     * Construct a new instance.
-     *
-     * @param glob the path glob to match
-     */
-    GlobPathFilter(final String glob) {
-        pattern = getGlobPattern(glob);
-        this.glob = glob;
-    }
-
-    /**
-     * Determine whether a path should be accepted.
-     *
-     * @param path the path to check
-     * @return true if the path should be accepted, false if not
-     */
-    public boolean accept(final String path) {
-        return pattern.matcher(path).matches();
-    }
-
-    /**
-     * Get a regular expression pattern which accept any path names which match the given glob.  The glob patterns
-     * function similarly to {@code ant} file patterns.  Valid metacharacters in the glob pattern include:
+     * Construct a new instance.  The glob patterns function similarly to {@code ant} file patterns.  Valid
+     * metacharacters in the glob pattern include:
      * <ul>
      * <li><code>"\"</code> - escape the next character (treat it literally, even if it is itself a recognized metacharacter)</li>
      * <li><code>"?"</code> - match any non-slash character</li>
@@ -72,48 +57,170 @@ final class GlobPathFilter implements PathFilter {
      * <p/>
      * <b>See also:</b> <a href="http://ant.apache.org/manual/dirtasks.html#patterns">"Patterns" in the Ant Manual</a>
      *
-     * @param glob the glob to match
-     *
-     * @return the pattern
+     * @param glob the path glob to match
      */
-    private static Pattern getGlobPattern(final String glob) {
-        StringBuilder patternBuilder = new StringBuilder();
-        final Matcher m = GLOB_PATTERN.matcher(glob);
+    GlobPathFilter(final String glob) {
+        this.glob = glob;
+        final int length = glob.length();
+        final byte[] kinds = new byte[length];
+        final String[] literals = new String[length];
+        int count = 0;
         boolean lastWasSlash = false;
-        while (m.find()) {
+        int i = 0;
+        while (i < length) {
             lastWasSlash = false;
-            String grp;
-            if ((grp = m.group(1)) != null) {
+            final char c = glob.charAt(i);
+            if (c == '*') {
                 // match a * or **
-                if (grp.length() == 2) {
-                    // it's a **
-                    patternBuilder.append(".*");
+                if (i + 1 < length && glob.charAt(i + 1) == '*') {
+                    kinds[count++] = DOUBLE_STAR;
+                    i += 2;
                 } else {
-                    // it's a *
-                    patternBuilder.append("[^/]*");
+                    kinds[count++] = STAR;
+                    i ++;
                 }
-            } else if ((grp = m.group(2)) != null) {
+            } else if (c == '?') {
                 // match a '?' glob pattern; any non-slash character
-                patternBuilder.append("[^/]");
-            } else if ((grp = m.group(3)) != null) {
-                // backslash-escaped value
-                patternBuilder.append(Pattern.quote(m.group().substring(1)));
-            } else if ((grp = m.group(4)) != null) {
+                kinds[count++] = ANY_CHAR;
+                i ++;
+            } else if (c == '/') {
                 // match any number of / chars
-                patternBuilder.append("/+");
+                do {
+                    i ++;
+                } while (i < length && glob.charAt(i) == '/');
+                kinds[count++] = SLASHES;
                 lastWasSlash = true;
             } else {
-                // some other string
-                patternBuilder.append(Pattern.quote(m.group()));
+                final String literal;
+                if (c == '\\' && i + 1 < length) {
+                    // backslash-escaped value
+                    literal = glob.substring(i + 1, i + 2);
+                    i += 2;
+                } else {
+                    // some other string, up to the next wildcard (a backslash is only an escape at the start)
+                    final int start = i;
+                    do {
+                        i ++;
+                    } while (i < length && glob.charAt(i) != '*' && glob.charAt(i) != '?');
+                    literal = glob.substring(start, i);
+                }
+                if (count > 0 && kinds[count - 1] == LITERAL) {
+                    literals[count - 1] += literal;
+                } else {
+                    kinds[count] = LITERAL;
+                    literals[count++] = literal;
+                }
+            }
+        }
+        this.kinds = Arrays.copyOf(kinds, count);
+        this.literals = Arrays.copyOf(literals, count);
+        trailingSlash = lastWasSlash;
+    }
+
+    /**
+     * Determine whether a path should be accepted.
+     *
+     * @param path the path to check
+     * @return true if the path should be accepted, false if not
+     */
+    public boolean accept(final String path) {
+        return matches(path, 0, 0);
+    }
+
+    /**
+     * Get the literal text which every accepted path starts with.
+     *
+     * @return the literal prefix, which may be empty
+     */
+    String getLiteralPrefix() {
+        return kinds.length > 0 && kinds[0] == LITERAL ? literals[0] : "";
+    }
+
+    private boolean matches(final String path, int pos, int idx) {
+        final byte[] kinds = this.kinds;
+        final int length = path.length();
+        while (idx < kinds.length) {
+            switch (kinds[idx]) {
+                case LITERAL: {
+                    final String literal = literals[idx];
+                    if (! path.startsWith(literal, pos)) {
+                        return false;
+                    }
+                    pos += literal.length();
+                    break;
+                }
+                case ANY_CHAR: {
+                    if (pos == length || path.charAt(pos) == '/') {
+                        return false;
+                    }
+                    pos ++;
+                    break;
+                }
+                case SLASHES: {
+                    if (pos == length || path.charAt(pos) != '/') {
+                        return false;
+                    }
+                    int end = pos + 1;
+                    while (end < length && path.charAt(end) == '/') {
+                        end ++;
+                    }
+                    if (end - pos > 1) {
+                        // the rest of the glob may itself start with a slash, so try each split
+                        for (int i = end; i > pos; i --) {
+                            if (matches(path, i, idx + 1)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+                    pos = end;
+                    break;
+                }
+                case STAR:
+                case DOUBLE_STAR: {
+                    final boolean crossSlashes = kinds[idx] == DOUBLE_STAR;
+                    int end = pos;
+                    while (end < length && (crossSlashes ? ! isLineTerminator(path.charAt(end)) : path.charAt(end) != '/')) {
+                        end ++;
+                    }
+                    if (idx + 1 == kinds.length && end == length) {
+                        // nothing after the wildcard but the tail, which accepts the end of the path
+                        return true;
+                    }
+                    for (int i = end; i >= pos; i --) {
+                        if (matches(path, i, idx + 1)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                default: {
+                    throw new IllegalStateException();
+                }
             }
+            idx ++;
+        }
+        if (pos == length) {
+            return true;
         }
-        if (lastWasSlash) {
-            // ends in /, append **
-            patternBuilder.append(".*");
-        } else {
-            patternBuilder.append("(?:/.*)?");
+        // a glob ending in a slash matches anything below it; any other glob matches its subdirectories
+        if (! trailingSlash && path.charAt(pos) != '/') {
+            return false;
         }
-        return Pattern.compile(patternBuilder.toString());
+        for (int i = pos; i < length; i ++) {
+            if (isLineTerminator(path.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Characters which are not matched by the {@code "**"} wildcard, the same ones which the {@code "."} of a
+     * regular expression does not match.
+     */
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
     }
 
     public int hashCode() {
@@ -125,17 +232,10 @@ final class GlobPathFilter implements PathFilter {
     }
 
     public boolean equals(final GlobPathFilter obj) {
-        return obj != null && obj.pattern.equals(pattern);
+        return obj != null && obj.glob.equals(glob);
     }
 
     public String toString() {
-        final StringBuilder b = new StringBuilder();
-        b.append("match ");
-        if (glob != null) {
-            b.append('"').append(glob).append('"');
-        } else {
-            b.append('/').append(pattern).append('/');
-        }
-        return b.toString();
+        return "match \"" + glob + '"';
     }
 }
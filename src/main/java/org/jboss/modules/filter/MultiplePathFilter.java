@@ -32,15 +32,21 @@ final class MultiplePathFilter implements PathFilter {
     private final boolean[] includeFlag;
     private final boolean defaultVal;
     private final int hashCode;
+    private final PathDecisionTable table;
 
-    MultiplePathFilter(final PathFilter[] filters, final boolean[] includeFlag, final boolean defaultVal) {
+    MultiplePathFilter(final PathFilter[] filters, final boolean[] includeFlag, final boolean defaultVal, final PathDecisionTable table) {
         this.filters = filters;
         this.includeFlag = includeFlag;
         this.defaultVal = defaultVal;
+        this.table = table;
         hashCode = Boolean.valueOf(defaultVal).hashCode() * 13 + (Arrays.hashCode(includeFlag) * 13 + (Arrays.hashCode(filters)));
     }
 
     public boolean accept(final String path) {
+        if (table != null) {
+            final int idx = table.firstMatch(path);
+            return idx == -1 ? defaultVal : includeFlag[idx];
+        }
         final int len = filters.length;
         for (int i = 0; i < len; i++) {
             if (filters[i].accept(path)) return includeFlag[i];
@@ -68,7 +68,9 @@ public class MultiplePathFilterBuilder {
         if (filters.length == 0) {
             return defaultVal ? PathFilters.acceptAll() : PathFilters.rejectAll();
         } else {
-            return new MultiplePathFilter(filters, includeFlags, defaultVal);
+            // long filter lists are compiled so that not every filter is evaluated for every path
+            final PathDecisionTable table = filters.length >= PathDecisionTable.THRESHOLD ? new PathDecisionTable(filters) : null;
+            return new MultiplePathFilter(filters, includeFlags, defaultVal, table);
         }
     }
 
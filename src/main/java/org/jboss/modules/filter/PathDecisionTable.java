@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compiled form of the filter list of a {@link MultiplePathFilter}, which finds the first filter accepting a path
+ * without evaluating every filter in turn.  Equality and set filters are looked up in a hash table; child-of filters
+ * and glob filters with a literal prefix are found by walking a prefix trie along the path.  Only globs whose prefix
+ * matches, and filters of other types, are actually evaluated.
+ */
+final class PathDecisionTable {
+
+    /**
+     * The number of filters from which a multiple path filter is compiled into a decision table.
+     */
+    static final int THRESHOLD = 8;
+
+    private final HashMap<String, Integer> exact;
+    private final Node root;
+    private final int[] otherIndexes;
+    private final PathFilter[] otherFilters;
+
+    PathDecisionTable(final PathFilter[] filters) {
+        final HashMap<String, Integer> exact = new HashMap<String, Integer>();
+        final Node root = new Node();
+        final List<Integer> otherIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < filters.length; i++) {
+            final PathFilter filter = filters[i];
+            if (filter instanceof EqualsPathFilter) {
+                addExact(exact, ((EqualsPathFilter) filter).getPath(), i);
+            } else if (filter instanceof SetPathFilter) {
+                for (String path : ((SetPathFilter) filter).getPaths()) {
+                    addExact(exact, path, i);
+                }
+            } else if (filter instanceof ChildPathFilter) {
+                final Node node = root.getOrAdd(((ChildPathFilter) filter).getPrefix());
+                if (node.childIndex > i) {
+                    node.childIndex = i;
+                }
+            } else if (filter instanceof GlobPathFilter) {
+                root.getOrAdd(((GlobPathFilter) filter).getLiteralPrefix()).addGlob(i, filter);
+            } else if (filter != PathFilters.rejectAll()) {
+                otherIndexes.add(Integer.valueOf(i));
+            }
+        }
+        this.exact = exact;
+        this.root = root;
+        final int size = otherIndexes.size();
+        this.otherIndexes = new int[size];
+        otherFilters = new PathFilter[size];
+        for (int i = 0; i < size; i++) {
+            this.otherIndexes[i] = otherIndexes.get(i).intValue();
+            otherFilters[i] = filters[this.otherIndexes[i]];
+        }
+    }
+
+    private static void addExact(final HashMap<String, Integer> exact, final String path, final int index) {
+        if (! exact.containsKey(path)) {
+            exact.put(path, Integer.valueOf(index));
+        }
+    }
+
+    /**
+     * Find the first filter which accepts a path.
+     *
+     * @param path the path
+     * @return the index of the first accepting filter, or {@code -1} if no filter accepts the path
+     */
+    int firstMatch(final String path) {
+        int best = Integer.MAX_VALUE;
+        final Integer exactIndex = exact.get(path);
+        if (exactIndex != null) {
+            best = exactIndex.intValue();
+        }
+        final int length = path.length();
+        Node node = root;
+        int pos = 0;
+        for (;;) {
+            if (node.childIndex < best) {
+                best = node.childIndex;
+            }
+            final int[] globIndexes = node.globIndexes;
+            for (int i = 0; i < node.globCount && globIndexes[i] < best; i++) {
+                if (node.globFilters[i].accept(path)) {
+                    best = globIndexes[i];
+                    break;
+                }
+            }
+            if (pos == length || (node = node.get(path.charAt(pos++))) == null) {
+                break;
+            }
+        }
+        final int[] otherIndexes = this.otherIndexes;
+        for (int i = 0; i < otherIndexes.length && otherIndexes[i] < best; i++) {
+            if (otherFilters[i].accept(path)) {
+                best = otherIndexes[i];
+                break;
+            }
+        }
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+
+    static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private int childIndex = Integer.MAX_VALUE;
+        private int globCount;
+        private int[] globIndexes;
+        private PathFilter[] globFilters;
+
+        Node get(final char c) {
+            final int idx = Arrays.binarySearch(keys, c);
+            return idx < 0 ? null : children[idx];
+        }
+
+        Node getOrAdd(final String prefix) {
+            Node node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                final char c = prefix.charAt(i);
+                final int idx = Arrays.binarySearch(node.keys, c);
+                if (idx >= 0) {
+                    node = node.children[idx];
+                } else {
+                    final int insert = -idx - 1;
+                    final int size = node.keys.length;
+                    final char[] keys = Arrays.copyOf(node.keys, size + 1);
+                    final Node[] children = Arrays.copyOf(node.children, size + 1);
+                    System.arraycopy(keys, insert, keys, insert + 1, size - insert);
+                    System.arraycopy(children, insert, children, insert + 1, size - insert);
+                    final Node child = new Node();
+                    keys[insert] = c;
+                    children[insert] = child;
+                    node.keys = keys;
+                    node.children = children;
+                    node = child;
+                }
+            }
+            return node;
+        }
+
+        void addGlob(final int index, final PathFilter filter) {
+            if (globIndexes == null) {
+                globIndexes = new int[2];
+                globFilters = new PathFilter[2];
+            } else if (globCount == globIndexes.length) {
+                globIndexes = Arrays.copyOf(globIndexes, globCount << 1);
+                globFilters = Arrays.copyOf(globFilters, globCount << 1);
+            }
+            // filters are added in order, so each node's globs stay sorted by index
+            globIndexes[globCount] = index;
+            globFilters[globCount++] = filter;
+        }
+    }
+}
@@ -81,6 +81,14 @@ public interface ModuleLoaderMXBean {
      */
     int getRaceCount();
 
+    /**
+     * Get the number of times a thread waited for another thread's definition of a class instead of defining it
+     * again.
+     *
+     * @return the avoided duplicate define count
+     */
+    int getAvoidedDefineCount();
+
     /**
      * Get the number of classes defined in this module loader.
      *
@@ -88,6 +96,37 @@ public interface ModuleLoaderMXBean {
      */
     int getClassCount();
 
+    /**
+     * Get the number of class lookups which were answered from a module's negative class cache.
+     *
+     * @return the negative class cache hit count
+     */
+    int getNegativeClassCacheHitCount();
+
+    /**
+     * Get the number of class lookups which could not be answered from a module's negative class cache.
+     *
+     * @return the negative class cache miss count
+     */
+    int getNegativeClassCacheMissCount();
+
+    /**
+     * Get the number of resource loader probes which were skipped because the loader's entry filter showed that
+     * the class or resource is definitely absent.
+     *
+     * @return the entry filter skip count
+     */
+    int getEntryFilterSkipCount();
+
+    /**
+     * Get the number of resource loader probes which the loader's entry filter let through but which found
+     * nothing.  The false positive rate of the entry filters is this count divided by the sum of this count and
+     * the skip count.
+     *
+     * @return the entry filter false positive count
+     */
+    int getEntryFilterFalsePositiveCount();
+
     /**
      * Obtain a list of the current module names.
      *
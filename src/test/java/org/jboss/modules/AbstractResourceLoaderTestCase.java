@@ -36,6 +36,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 
@@ -97,6 +98,15 @@ public abstract class AbstractResourceLoaderTestCase extends AbstractModuleTestC
         assertArrayEquals(expectedBytes, bytes);
     }
 
+    @Test
+    public void testClassSpecCodeSourceShared() throws Exception {
+        final String fileName = Module.fileNameOfClass("org.jboss.modules.test.TestClass");
+        ClassSpec spec1 = loader.getClassSpec(fileName);
+        ClassSpec spec2 = loader.getClassSpec(fileName);
+        assertNotNull(spec1.getCodeSource());
+        assertSame(spec1.getCodeSource(), spec2.getCodeSource());
+    }
+
     @Test
     public void testMissingClassSpec() throws Exception {
         ClassSpec spec = loader.getClassSpec(Module.fileNameOfClass("org.jboss.modules.test.BogusClass"));
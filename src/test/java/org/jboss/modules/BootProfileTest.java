@@ -0,0 +1,206 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.modules.test.ImportedClass;
+import org.jboss.modules.test.TestClass;
+import org.jboss.modules.util.TestModuleLoader;
+import org.jboss.modules.util.TestResourceLoader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test to verify boot profile recording and replay.
+ */
+public class BootProfileTest extends AbstractModuleTestCase {
+
+    private static final ModuleIdentifier MODULE_ID = ModuleIdentifier.fromString("test-boot-profile");
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        file = File.createTempFile("boot-profile", ".txt");
+        file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    private static TestModuleLoader createModuleLoader() throws Exception {
+        final TestModuleLoader moduleLoader = new TestModuleLoader();
+        final ModuleSpec.Builder builder = ModuleSpec.build(MODULE_ID);
+        builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(
+                TestResourceLoader.build()
+                .addClass(TestClass.class)
+                .addClass(ImportedClass.class)
+                .create()
+        ));
+        builder.addDependency(DependencySpec.createLocalDependencySpec());
+        moduleLoader.addModuleSpec(builder.create());
+        return moduleLoader;
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        final TestModuleLoader recordLoader = createModuleLoader();
+        final Module module = recordLoader.loadModule(MODULE_ID);
+        final BootProfile recording = new BootProfile(file, recordLoader);
+        recording.record(module, TestClass.class.getName());
+        recording.record(module, ImportedClass.class.getName());
+        // modules of other loaders are not recorded
+        recording.record(createModuleLoader().loadModule(MODULE_ID), "org.jboss.modules.test.Other");
+        assertTrue(recording.write());
+        assertFalse(recording.write());
+
+        final TestModuleLoader replayLoader = createModuleLoader();
+        final BootProfile replaying = new BootProfile(file, replayLoader);
+        final List<BootProfile.ProfiledModule> modules = replaying.read();
+        assertEquals(1, modules.size());
+        assertEquals(MODULE_ID, modules.get(0).identifier);
+        assertEquals(2, modules.get(0).classNames.size());
+        assertEquals(2, replaying.replay(modules, 2));
+    }
+
+    @Test
+    public void testReplayNotRecorded() throws Exception {
+        final TestModuleLoader recordLoader = createModuleLoader();
+        final Module module = recordLoader.loadModule(MODULE_ID);
+        final BootProfile recording = new BootProfile(file, recordLoader);
+        recording.record(module, TestClass.class.getName());
+        recording.record(module, ImportedClass.class.getName());
+        assertTrue(recording.write());
+
+        final TestModuleLoader replayLoader = createModuleLoader();
+        final BootProfile replaying = new BootProfile(file, replayLoader);
+        replaying.activate();
+        try {
+            assertEquals(2, replaying.replay(replaying.read(), 2));
+            // only classes which are asked for outside of the replay are recorded again
+            replayLoader.loadModule(MODULE_ID).getClassLoader().loadClass(TestClass.class.getName());
+        } finally {
+            replaying.stopRecording();
+        }
+        final List<BootProfile.ProfiledModule> modules = new BootProfile(file, replayLoader).read();
+        assertEquals(1, modules.size());
+        assertEquals(Collections.singletonList(TestClass.class.getName()), modules.get(0).classNames);
+    }
+
+    @Test
+    public void testDirectoryStamp() throws Exception {
+        final File root = File.createTempFile("boot-profile", "");
+        assertTrue(root.delete());
+        final File dir = new File(root, "a/b");
+        assertTrue(dir.mkdirs());
+        try {
+            final long stamp = ResourceRootIndex.getStamp(root);
+            assertEquals(stamp, ResourceRootIndex.getStamp(root));
+            // a file added below the top level changes the stamp
+            assertTrue(new File(dir, "C.class").createNewFile());
+            assertTrue(dir.setLastModified(dir.lastModified() + 2000L));
+            assertFalse(stamp == ResourceRootIndex.getStamp(root));
+        } finally {
+            new File(dir, "C.class").delete();
+            dir.delete();
+            dir.getParentFile().delete();
+            root.delete();
+        }
+    }
+
+    @Test
+    public void testLinkedDirectoryStamp() throws Exception {
+        final Path root = Files.createTempDirectory("boot-profile");
+        final Path target = Files.createTempDirectory("boot-profile-target");
+        final Path link = root.resolve("linked");
+        final File indexFile = ResourceRootIndex.getIndexFile(root.toFile());
+        try {
+            Files.createDirectories(target.resolve("a/b"));
+            try {
+                Files.createSymbolicLink(link, target);
+            } catch (UnsupportedOperationException e) {
+                return;
+            }
+            // directories changed just now are too recent to be indexed
+            final long modified = System.currentTimeMillis() - 60000L;
+            for (Path dir : new Path[] { target.resolve("a/b"), target.resolve("a"), target, root }) {
+                assertTrue(dir.toFile().setLastModified(modified));
+            }
+            final long stamp = ResourceRootIndex.getStamp(root.toFile());
+            // an index of the same tree, which follows the link, must give the same stamp as the walk
+            final ResourceRootIndex.Builder builder = new ResourceRootIndex.Builder(root.toFile());
+            builder.addPath("");
+            new FileResourceLoader("linked", root.toFile()).buildIndex(builder);
+            builder.write();
+            assertNotNull(ResourceRootIndex.read(root.toFile(), false));
+            assertEquals(stamp, ResourceRootIndex.getStamp(root.toFile()));
+        } finally {
+            indexFile.delete();
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(target.resolve("a/b"));
+            Files.deleteIfExists(target.resolve("a"));
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(root);
+        }
+    }
+
+    @Test
+    public void testStaleModuleSkipped() throws Exception {
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(("#jboss-modules boot profile 1\nM 0 " + MODULE_ID + " 1\nC 0 " + TestClass.class.getName() + "\n").getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        final BootProfile replaying = new BootProfile(file, createModuleLoader());
+        final List<BootProfile.ProfiledModule> modules = replaying.read();
+        assertEquals(1, modules.size());
+        assertEquals(0, replaying.replay(modules, 2));
+    }
+
+    @Test
+    public void testMalformedProfileIgnored() throws Exception {
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write("#jboss-modules boot profile 1\nC 3 foo.Bar\n".getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        assertNull(new BootProfile(file, createModuleLoader()).read());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import static org.jboss.modules.ResourceLoaderSpec.createResourceLoaderSpec;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.jboss.modules.test.QuxBar;
+import org.jboss.modules.test.QuxFoo;
+import org.jboss.modules.util.ModulesTestBase;
+import org.jboss.modules.util.TestResourceLoader;
+import org.junit.Test;
+
+/**
+ * Test for class specs which carry their class file in a byte buffer.
+ */
+public class ClassSpecTest extends ModulesTestBase {
+
+    @Test
+    public void testByteBufferContents() {
+        final ClassSpec spec = new ClassSpec();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+        buffer.put(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        buffer.position(2);
+        buffer.limit(6);
+        spec.setByteBuffer(buffer);
+        assertSame(buffer, spec.getByteBuffer());
+        assertArrayEquals(new byte[] { 3, 4, 5, 6 }, spec.getBytes());
+        // the buffer is left untouched
+        assertEquals(2, buffer.position());
+        assertEquals(6, buffer.limit());
+        spec.setBytes(new byte[] { 9 });
+        assertNull(spec.getByteBuffer());
+        assertArrayEquals(new byte[] { 9 }, spec.getBytes());
+    }
+
+    @Test
+    public void testDefineFromByteBuffer() throws Exception {
+        final TestResourceLoader resourceLoader = new TestResourceLoader.TestResourceLoaderBuilder()
+            .addClasses(QuxBar.class, QuxFoo.class)
+            .create();
+        toByteBuffer(resourceLoader, QuxBar.class, true);
+        toByteBuffer(resourceLoader, QuxFoo.class, false);
+        final ModuleIdentifier identifier = ModuleIdentifier.create(getClass().getSimpleName());
+        final ModuleSpec.Builder builder = ModuleSpec.build(identifier);
+        builder.addResourceRoot(createResourceLoaderSpec(resourceLoader));
+        builder.addDependency(DependencySpec.createLocalDependencySpec());
+        addModuleSpec(builder.create());
+        final Module module = loadModule(identifier);
+        final Class<?> quxBar = loadClass(identifier, QuxBar.class.getName());
+        final Class<?> quxFoo = loadClass(identifier, QuxFoo.class.getName());
+        assertSame(module.getClassLoader(), quxBar.getClassLoader());
+        assertSame(module.getClassLoader(), quxFoo.getClassLoader());
+        assertEquals(QuxBar.class.getName(), quxBar.getName());
+        assertEquals(QuxFoo.class.getName(), quxFoo.getName());
+    }
+
+    private static void toByteBuffer(final TestResourceLoader resourceLoader, final Class<?> clazz, final boolean direct) throws Exception {
+        final ClassSpec spec = resourceLoader.getClassSpec(clazz.getName().replace('.', '/') + ".class");
+        final byte[] bytes = spec.getBytes();
+        final ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        spec.setByteBuffer(buffer);
+    }
+}
@@ -31,10 +31,13 @@ import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 
+import static org.junit.Assert.assertSame;
+
 /**
  * Test case to verify the concurrent classloader base correctly handles common concurrency issues with classloading..
  *
@@ -90,6 +93,45 @@ public class ConcurrentClassLoaderTest {
         if (threadTwoProblem != null) throw threadTwoProblem;
     }
 
+    @Test
+    public void testConcurrentPackageDefinition() throws Throwable {
+        final TestConcurrentClassLoader classLoader = new TestConcurrentClassLoader(ConcurrentClassLoaderTest.class.getClassLoader(), Collections.<String>emptySet());
+        final int threadCount = 32;
+        final int packageCount = 256;
+        final Package[][] packages = new Package[threadCount][packageCount];
+        final Throwable[] problems = new Throwable[threadCount];
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int idx = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for (int j = 0; j < packageCount; j++) {
+                            // start at a different package in each thread to spread the contention
+                            final int p = (j + idx * 8) % packageCount;
+                            packages[idx][p] = classLoader.definePackage("org.jboss.modules.test.pkg" + p, null, null, null, null, null, null, null);
+                        }
+                    } catch (Throwable t) {
+                        problems[idx] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        latch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < threadCount; i++) {
+            if (problems[i] != null) throw problems[i];
+            for (int j = 0; j < packageCount; j++) {
+                assertSame(classLoader.findLoadedPackage("org.jboss.modules.test.pkg" + j), packages[i][j]);
+            }
+        }
+    }
+
     private static final class TestConcurrentClassLoader extends ConcurrentClassLoader {
         static {
             boolean parallelOk = true;
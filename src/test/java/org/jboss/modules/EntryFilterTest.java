@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.jboss.modules.filter.PathFilters;
+import org.junit.Test;
+
+/**
+ * Test for the entry filters of resource loaders.
+ */
+public class EntryFilterTest {
+
+    @Test
+    public void testNoFalseNegatives() {
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 10000; i ++) {
+            names.add("org/acme/pkg" + (i % 37) + "/Class" + i + ".class");
+        }
+        final EntryFilter filter = EntryFilter.create(names);
+        for (String name : names) {
+            assertTrue(name, filter.mayContain(name));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i ++) {
+            if (filter.mayContain("org/acme/pkg" + (i % 37) + "/Missing" + i + ".class")) {
+                falsePositives ++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 200);
+    }
+
+    @Test
+    public void testSlashes() {
+        final List<String> names = new ArrayList<String>();
+        names.add("org/acme");
+        names.add("org/acme/Foo.class");
+        final EntryFilter filter = EntryFilter.create(names);
+        assertTrue(filter.mayContain("org/acme/"));
+        assertTrue(filter.mayContain("/org/acme/Foo.class"));
+        assertFalse(EntryFilter.create(new ArrayList<String>()).mayContain("org/acme"));
+    }
+
+    @Test
+    public void testJarFilter() throws Exception {
+        final File jar = File.createTempFile("entry-filter", ".jar");
+        final File indexFile = ResourceRootIndex.getIndexFile(jar);
+        try {
+            final JarOutputStream os = new JarOutputStream(new FileOutputStream(jar));
+            try {
+                for (String name : new String[] { "a/", "a/b/C.class", "a/D.txt", "E.txt" }) {
+                    os.putNextEntry(new JarEntry(name));
+                    os.closeEntry();
+                }
+            } finally {
+                os.close();
+            }
+            final JarFile jarFile = new JarFile(jar);
+            try {
+                final JarFileResourceLoader loader = new JarFileResourceLoader("test", jarFile);
+                loader.getPaths();
+                final EntryFilter filter = EntryFilter.of(loader);
+                assertNotNull(filter);
+                for (String name : new String[] { "a", "a/", "a/b/C.class", "a/D.txt", "E.txt" }) {
+                    assertNotNull(name, loader.getResource(name));
+                    assertTrue(name, filter.mayContain(name));
+                }
+                final JarFileResourceLoader nested = new JarFileResourceLoader("nested", jarFile, "a");
+                nested.getPaths();
+                final EntryFilter nestedFilter = EntryFilter.of(ResourceLoaders.createFilteredResourceLoader(PathFilters.acceptAll(), nested));
+                assertNotNull(nestedFilter);
+                for (String name : new String[] { "b/C.class", "D.txt" }) {
+                    assertTrue(name, nestedFilter.mayContain(name));
+                    assertNotNull(name, nested.getResource(name));
+                }
+                // names outside the nested root are not entries of the nested loader
+                assertFalse(nestedFilter.mayContain("a/D.txt") && nestedFilter.mayContain("E.txt") && nestedFilter.mayContain("a/b/C.class"));
+            } finally {
+                jarFile.close();
+            }
+        } finally {
+            jar.delete();
+            indexFile.delete();
+        }
+    }
+}
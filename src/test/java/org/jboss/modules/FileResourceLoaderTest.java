@@ -24,8 +24,15 @@ package org.jboss.modules;
 
 import org.jboss.modules.filter.PathFilter;
 import org.junit.Assert;
+import org.junit.Test;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.net.MalformedURLException;
 
 /**
  * Test the functionality of the FileResourceLoader
@@ -48,6 +55,11 @@ public class FileResourceLoaderTest extends AbstractResourceLoaderTestCase {
         final File resourceFile = getExpectedFile(fileName);
 
         Assert.assertEquals(resourceFile.length(), resource.getSize());
+        try {
+            Assert.assertEquals(resourceFile.toURI().toURL(), resource.getURL());
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public void testGetClassSpec() throws Exception {
@@ -57,4 +69,72 @@ public class FileResourceLoaderTest extends AbstractResourceLoaderTestCase {
     protected File getExpectedFile(String fileName) {
         return new File(resourceRoot, fileName);
     }
+
+    @Test
+    public void testMissesAndDirectories() throws Exception {
+        Assert.assertNull(loader.getClassSpec("org/jboss/modules/test/Missing.class"));
+        Assert.assertNull(loader.getClassSpec("test.txt/Nested.class"));
+        Assert.assertNull(loader.getClassSpec("org/jboss/modules/test"));
+        Assert.assertNotNull(loader.getClassSpec("/org/jboss/modules/test/TestClass.class"));
+        final Resource directory = loader.getResource("nested");
+        Assert.assertNotNull(directory);
+        Assert.assertEquals(new File(resourceRoot, "nested").toURI().toURL(), directory.getURL());
+    }
+
+    @Test
+    public void testParallelIndex() throws Exception {
+        final File root = new File(getResource("test"), "fileresourceloader-parallel");
+        for (int i = 0; i < 20; i ++) {
+            final File dir = new File(root, "p" + (i % 4) + "/q" + i + "/r");
+            dir.mkdirs();
+            new File(dir, "E" + i + ".class").createNewFile();
+        }
+        final FileResourceLoader fileLoader = new FileResourceLoader("parallel", root);
+        final ResourceRootIndex.Builder sequential = new ResourceRootIndex.Builder(root);
+        sequential.addPath("");
+        fileLoader.buildIndex(sequential);
+        final ResourceRootIndex.Builder parallel = new ResourceRootIndex.Builder(root);
+        parallel.addPath("");
+        fileLoader.buildIndexParallel(parallel);
+        final Set<String> paths = new HashSet<String>();
+        sequential.getPaths(paths, null);
+        Assert.assertEquals(1 + 4 + 20 + 20, paths.size());
+        Assert.assertTrue(paths.contains("p3/q7/r"));
+        final Set<String> parallelPaths = new HashSet<String>();
+        parallel.getPaths(parallelPaths, null);
+        Assert.assertEquals(paths, parallelPaths);
+        final EntryFilter filter = parallel.createEntryFilter(null);
+        for (int i = 0; i < 20; i ++) {
+            Assert.assertTrue(filter.mayContain("p" + (i % 4) + "/q" + i + "/r/E" + i + ".class"));
+        }
+    }
+
+    @Test
+    public void testParallelIndexLinkToRoot() throws Exception {
+        final Path root = Files.createTempDirectory("parallel-index");
+        final Path dir = Files.createDirectories(root.resolve("p/q"));
+        final Path link = dir.resolve("up");
+        try {
+            Files.createFile(dir.resolve("E.class"));
+            try {
+                Files.createSymbolicLink(link, root);
+            } catch (UnsupportedOperationException e) {
+                return;
+            }
+            final FileResourceLoader fileLoader = new FileResourceLoader("parallel-link", root.toFile());
+            final ResourceRootIndex.Builder parallel = new ResourceRootIndex.Builder(root.toFile());
+            parallel.addPath("");
+            fileLoader.buildIndexParallel(parallel);
+            final Set<String> parallelPaths = new HashSet<String>();
+            parallel.getPaths(parallelPaths, null);
+            // the link leads back to the root, so it is not walked at all
+            Assert.assertEquals(new HashSet<String>(Arrays.asList("", "p", "p/q")), parallelPaths);
+        } finally {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(dir.resolve("E.class"));
+            Files.deleteIfExists(dir);
+            Files.deleteIfExists(dir.getParent());
+            Files.deleteIfExists(root);
+        }
+    }
 }
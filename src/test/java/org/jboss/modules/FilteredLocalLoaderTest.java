@@ -0,0 +1,95 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.modules.filter.ClassFilter;
+import org.jboss.modules.filter.ClassFilters;
+import org.jboss.modules.filter.PathFilter;
+import org.jboss.modules.filter.PathFilters;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test to verify that filtered local loaders are composed into a single loader.
+ */
+public class FilteredLocalLoaderTest {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final LocalLoader loader = new LocalLoader() {
+        public Class<?> loadClassLocal(final String name, final boolean resolve) {
+            return String.class;
+        }
+
+        public Package loadPackageLocal(final String name) {
+            return null;
+        }
+
+        public List<Resource> loadResourceLocal(final String name) {
+            return Collections.<Resource>singletonList(null);
+        }
+    };
+
+    @Test
+    public void testAcceptAllShortCircuit() {
+        assertSame(loader, FilteredLocalLoader.create(loader, new Object[] { ClassFilters.acceptAll(), null }, new Object[] { PathFilters.acceptAll() },
+                ClassFilters.acceptAll(), ClassFilters.acceptAll(), PathFilters.acceptAll(), PathFilters.acceptAll()));
+    }
+
+    @Test
+    public void testRejectAllShortCircuit() {
+        assertNull(FilteredLocalLoader.create(loader, EMPTY, new Object[] { PathFilters.match("foo/**") },
+                ClassFilters.rejectAll(), ClassFilters.acceptAll(), PathFilters.rejectAll(), PathFilters.acceptAll()));
+        final LocalLoader classesRejected = FilteredLocalLoader.create(loader, EMPTY, EMPTY,
+                ClassFilters.rejectAll(), ClassFilters.acceptAll(), PathFilters.acceptAll(), PathFilters.acceptAll());
+        assertNotNull(classesRejected);
+        assertNull(classesRejected.loadClassLocal("foo.Bar", false));
+        assertEquals(1, classesRejected.loadResourceLocal("foo/bar.txt").size());
+    }
+
+    @Test
+    public void testFiltersComposed() {
+        final PathFilter fooFilter = PathFilters.isChildOf("foo");
+        final ClassFilter fooClassFilter = ClassFilters.fromResourcePathFilter(fooFilter);
+        final ClassFilter barClassFilter = ClassFilters.fromResourcePathFilter(PathFilters.match("**/Bar.class"));
+        final LocalLoader inner = FilteredLocalLoader.create(loader, new Object[] { fooClassFilter }, EMPTY,
+                ClassFilters.acceptAll(), ClassFilters.acceptAll(), fooFilter, PathFilters.acceptAll());
+        final LocalLoader outer = FilteredLocalLoader.create(inner, new Object[] { fooClassFilter, barClassFilter }, new Object[] { fooFilter },
+                ClassFilters.acceptAll(), ClassFilters.acceptAll(), PathFilters.acceptAll(), PathFilters.acceptAll());
+        assertTrue(outer instanceof FilteredLocalLoader);
+
+        assertNotNull(outer.loadClassLocal("foo.Bar", false));
+        assertNull(outer.loadClassLocal("foo.Baz", false));
+        assertNull(outer.loadClassLocal("baz.Bar", false));
+        assertEquals(1, outer.loadResourceLocal("foo/bar.txt").size());
+        assertEquals(0, outer.loadResourceLocal("baz/bar.txt").size());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.modules.filter.PathFilter;
+import org.jboss.modules.filter.PathFilters;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test to verify that glob path filters match exactly the paths which the regular expression translation of the
+ * glob, as used by earlier versions, matches.
+ */
+public class GlobPathFilterTest {
+
+    private static final Pattern GLOB_PATTERN = Pattern.compile("(\\*\\*?)|(\\?)|(\\\\.)|(/+)|([^*?]+)");
+
+    private static final String[] GLOBS = {
+        "", "/", "foo", "foo/", "foo/**", "foo/*", "foo//bar", "**/bar/**", "**/*.class", "META-INF/services/*",
+        "org/jboss/modules", "org/*/modules/", "?", "*", "**", "***", "a\\*b", "ab\\*", "\\", "a\\", "a/\\/b", "*//x",
+    };
+
+    private static final String[] PATHS = {
+        "", "/", "//", "foo", "foo/", "foo//", "foo/bar", "foo//bar", "foo/bar/baz", "foo/baz/bar/biff", "bar",
+        "x/bar/y", "Foo.class", "org/Foo.class", "META-INF/services/foo", "org/jboss/modules", "org/jboss/modules/x",
+        "a*b", "ab\\", "a\\b", "\\", "a//b", "a/b", "x//x", "foo\nbar", "foo/\n", "foo\u2028",
+    };
+
+    @Test
+    public void testKnownGlobs() {
+        for (String glob : GLOBS) {
+            final PathFilter filter = PathFilters.match(glob);
+            final Pattern pattern = getGlobPattern(glob);
+            for (String path : PATHS) {
+                assertEquals(glob + " accepting " + path, pattern.matcher(path).matches(), filter.accept(path));
+            }
+        }
+    }
+
+    @Test
+    public void testGeneratedGlobs() {
+        final Random random = new Random(4711L);
+        final String[] paths = new String[500];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = generate(random, "ab/./\n", 12);
+        }
+        for (int g = 0; g < 5000; g++) {
+            final String glob = generate(random, "ab/*?\\.", 8);
+            final PathFilter filter = PathFilters.match(glob);
+            final Pattern pattern = getGlobPattern(glob);
+            for (String path : paths) {
+                assertEquals(glob + " accepting " + path, pattern.matcher(path).matches(), filter.accept(path));
+            }
+        }
+    }
+
+    private static String generate(final Random random, final String alphabet, final int maxLength) {
+        final int length = random.nextInt(maxLength + 1);
+        final StringBuilder b = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            b.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return b.toString();
+    }
+
+    /**
+     * The regular expression translation of a glob which earlier versions used.
+     */
+    private static Pattern getGlobPattern(final String glob) {
+        StringBuilder patternBuilder = new StringBuilder();
+        final Matcher m = GLOB_PATTERN.matcher(glob);
+        boolean lastWasSlash = false;
+        while (m.find()) {
+            lastWasSlash = false;
+            String grp;
+            if ((grp = m.group(1)) != null) {
+                patternBuilder.append(grp.length() == 2 ? ".*" : "[^/]*");
+            } else if ((grp = m.group(2)) != null) {
+                patternBuilder.append("[^/]");
+            } else if ((grp = m.group(3)) != null) {
+                patternBuilder.append(Pattern.quote(m.group().substring(1)));
+            } else if ((grp = m.group(4)) != null) {
+                patternBuilder.append("/+");
+                lastWasSlash = true;
+            } else {
+                patternBuilder.append(Pattern.quote(m.group()));
+            }
+        }
+        if (lastWasSlash) {
+            patternBuilder.append(".*");
+        } else {
+            patternBuilder.append("(?:/.*)?");
+        }
+        return Pattern.compile(patternBuilder.toString());
+    }
+}
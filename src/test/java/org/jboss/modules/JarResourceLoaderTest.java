@@ -24,12 +24,22 @@ package org.jboss.modules;
 
 import org.jboss.modules.filter.PathFilter;
 import org.junit.Assert;
+import org.junit.Test;
 
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -54,13 +64,83 @@ public class JarResourceLoaderTest extends AbstractResourceLoaderTestCase {
         buildJar(fileResourceRoot, outputFile);
         // Create the jar file and resource loader
         jarFile = new JarFile(outputFile, true);
-        return new JarFileResourceLoader("test-root", jarFile);
+        return createJarResourceLoader("test-root", outputFile, jarFile);
+    }
+
+    protected ResourceLoader createJarResourceLoader(final String rootName, final File file, final JarFile jarFile) throws Exception {
+        return new JarFileResourceLoader(rootName, jarFile);
     }
 
     @Override
     protected void assertResource(Resource resource, String fileName) {
         final JarEntry entry = jarFile.getJarEntry(fileName);
         Assert.assertEquals(entry.getSize(), resource.getSize());
+        try {
+            final URL url = new URL("jar:" + new File(jarFile.getName()).toURI() + "!/" + fileName);
+            Assert.assertEquals(url, resource.getURL());
+            Assert.assertSame(resource.getURL(), resource.getURL());
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testConcurrentClassSpecs() throws Exception {
+        // a jar with two thousand entries of varying size, read by 1, 8 and 32 threads at once
+        final File outputFile = File.createTempFile("concurrent", ".jar");
+        try {
+            final Random random = new Random(42L);
+            final byte[][] contents = new byte[2000][];
+            final JarOutputStream target = new JarOutputStream(new FileOutputStream(outputFile));
+            try {
+                for (int i = 0; i < contents.length; i++) {
+                    final byte[] bytes = new byte[random.nextInt(4096)];
+                    for (int j = 0; j < bytes.length; j++) {
+                        // compressible content
+                        bytes[j] = (byte) (random.nextInt(16) + 'a');
+                    }
+                    contents[i] = bytes;
+                    target.putNextEntry(new JarEntry("org/test/Class" + i + ".class"));
+                    target.write(bytes);
+                    target.closeEntry();
+                }
+            } finally {
+                target.close();
+            }
+            final JarFile concurrentJarFile = new JarFile(outputFile, true);
+            try {
+                final ResourceLoader concurrentLoader = createJarResourceLoader("concurrent-root", outputFile, concurrentJarFile);
+                for (int threads : new int[] { 1, 8, 32 }) {
+                    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+                    try {
+                        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                        for (int t = 0; t < threads; t++) {
+                            // each thread reads its share of the entries
+                            final int first = t;
+                            final int stride = threads;
+                            futures.add(executor.submit(new Callable<Void>() {
+                                public Void call() throws Exception {
+                                    for (int idx = first; idx < contents.length; idx += stride) {
+                                        final ClassSpec spec = concurrentLoader.getClassSpec("org/test/Class" + idx + ".class");
+                                        Assert.assertArrayEquals(contents[idx], spec.getBytes());
+                                    }
+                                    return null;
+                                }
+                            }));
+                        }
+                        for (Future<Void> future : futures) {
+                            future.get();
+                        }
+                    } finally {
+                        executor.shutdown();
+                    }
+                }
+            } finally {
+                concurrentJarFile.close();
+            }
+        } finally {
+            outputFile.delete();
+        }
     }
 
     private void buildJar(final File source, final File targetFile) throws IOException {
@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the functionality of the memory-mapped JAR resource loader.
+ */
+public class MappedJarResourceLoaderTest extends JarResourceLoaderTest {
+
+    protected ResourceLoader createJarResourceLoader(final String rootName, final File file, final JarFile jarFile) throws Exception {
+        final ResourceLoader loader = ResourceLoaders.createMappedJarResourceLoader(rootName, file);
+        Assert.assertTrue(loader instanceof MappedJarResourceLoader);
+        return loader;
+    }
+
+    @Test
+    public void testStoredEntries() throws Exception {
+        final File outputFile = new File(getResource("test"), "jarresourceloader/stored.jar");
+        outputFile.getParentFile().mkdirs();
+        final byte[] bytes = "stored content".getBytes("UTF-8");
+        final JarOutputStream target = new JarOutputStream(new FileOutputStream(outputFile));
+        try {
+            final JarEntry directory = new JarEntry("org/test/");
+            directory.setMethod(ZipEntry.STORED);
+            directory.setSize(0);
+            directory.setCrc(new CRC32().getValue());
+            target.putNextEntry(directory);
+            target.closeEntry();
+            final JarEntry entry = new JarEntry("org/test/Stored.class");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes.length);
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setCrc(crc.getValue());
+            target.putNextEntry(entry);
+            target.write(bytes);
+            target.closeEntry();
+        } finally {
+            target.close();
+        }
+        final ResourceLoader storedLoader = createJarResourceLoader("stored-root", outputFile, null);
+        final ClassSpec spec = storedLoader.getClassSpec("org/test/Stored.class");
+        Assert.assertNotNull(spec.getByteBuffer());
+        Assert.assertArrayEquals(bytes, spec.getBytes());
+        final Resource resource = storedLoader.getResource("org/test/Stored.class");
+        Assert.assertEquals(bytes.length, resource.getSize());
+        final InputStream is = resource.openStream();
+        try {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            int b;
+            while ((b = is.read()) != -1) {
+                os.write(b);
+            }
+            Assert.assertArrayEquals(bytes, os.toByteArray());
+        } finally {
+            is.close();
+        }
+        Assert.assertEquals("org/test/", storedLoader.getResource("org/test").getName());
+        Assert.assertNull(storedLoader.getResource("org/test/Missing.class"));
+        Assert.assertTrue(storedLoader.getPaths().contains("org/test"));
+        Assert.assertNull(storedLoader.getPackageSpec("org.test"));
+    }
+
+    @Test
+    public void testReplacedFile() throws Exception {
+        final File outputFile = File.createTempFile("replaced", ".jar");
+        final File newFile = File.createTempFile("replacement", ".jar");
+        try {
+            writeJar(outputFile, "org/test/Replaced.class", "old content".getBytes("UTF-8"));
+            final ResourceLoader replacedLoader = createJarResourceLoader("replaced-root", outputFile, null);
+            final Resource resource = replacedLoader.getResource("org/test/Replaced.class");
+            Assert.assertArrayEquals("old content".getBytes("UTF-8"), replacedLoader.getClassSpec("org/test/Replaced.class").getBytes());
+
+            // a JAR of a different size renamed over the mapped one must not be read through the old mapping
+            final byte[] bytes = "new and longer content".getBytes("UTF-8");
+            writeJar(newFile, "org/test/Replaced.class", bytes);
+            Files.move(newFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Assert.assertArrayEquals(bytes, replacedLoader.getClassSpec("org/test/Replaced.class").getBytes());
+            Assert.assertEquals(bytes.length, replacedLoader.getResource("org/test/Replaced.class").getSize());
+            final InputStream is = resource.openStream();
+            try {
+                final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                int b;
+                while ((b = is.read()) != -1) {
+                    os.write(b);
+                }
+                Assert.assertArrayEquals(bytes, os.toByteArray());
+            } finally {
+                is.close();
+            }
+        } finally {
+            outputFile.delete();
+            newFile.delete();
+        }
+    }
+
+    private static void writeJar(final File file, final String name, final byte[] bytes) throws Exception {
+        final JarOutputStream target = new JarOutputStream(new FileOutputStream(file));
+        try {
+            target.putNextEntry(new JarEntry(name));
+            target.write(bytes);
+            target.closeEntry();
+        } finally {
+            target.close();
+        }
+    }
+}
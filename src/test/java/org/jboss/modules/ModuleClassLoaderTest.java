@@ -29,18 +29,26 @@ import org.jboss.modules.test.ImportedInterface;
 import org.jboss.modules.test.TestClass;
 import org.jboss.modules.util.TestModuleLoader;
 import org.jboss.modules.util.TestResourceLoader;
+import org.jboss.modules.util.Util;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.InputStream;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.jboss.modules.util.Util.toList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -62,6 +70,13 @@ public class ModuleClassLoaderTest extends AbstractModuleTestCase {
     private static final ModuleIdentifier MODULE_WITH_FILTERED_IMPORT_ID = ModuleIdentifier.fromString("test-with-filtered-import");
     private static final ModuleIdentifier MODULE_WITH_FILTERED_DOUBLE_EXPORT_ID = ModuleIdentifier.fromString("test-with-filtered-double-export");
 
+    private static final ModuleIdentifier MODULE_WITH_HOOKS_ID = ModuleIdentifier.fromString("test-with-hooks");
+
+    static {
+        // the define counters are only maintained with metrics enabled
+        System.setProperty("jboss.modules.metrics", "true");
+    }
+
     private TestModuleLoader moduleLoader;
 
     @Before
@@ -79,6 +94,21 @@ public class ModuleClassLoaderTest extends AbstractModuleTestCase {
         moduleWithContentBuilder.addDependency(DependencySpec.createLocalDependencySpec());
         moduleLoader.addModuleSpec(moduleWithContentBuilder.create());
 
+        final ModuleSpec.Builder moduleWithHooksBuilder = ModuleSpec.build(MODULE_WITH_HOOKS_ID);
+        moduleWithHooksBuilder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(
+                TestResourceLoader.build()
+                .addClass(TestClass.class)
+                .addClass(ImportedClass.class)
+                .create()
+        ));
+        moduleWithHooksBuilder.addDependency(DependencySpec.createLocalDependencySpec());
+        moduleWithHooksBuilder.setModuleClassLoaderFactory(new ModuleClassLoaderFactory() {
+            public ModuleClassLoader create(final ModuleClassLoader.Configuration configuration) {
+                return new HookedModuleClassLoader(configuration);
+            }
+        });
+        moduleLoader.addModuleSpec(moduleWithHooksBuilder.create());
+
         final ModuleSpec.Builder moduleWithResourceBuilder = ModuleSpec.build(MODULE_WITH_RESOURCE_ID);
         moduleWithResourceBuilder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(
                 TestResourceLoader.build()
@@ -152,6 +182,173 @@ public class ModuleClassLoaderTest extends AbstractModuleTestCase {
         }
     }
 
+    @Test
+    public void testConcurrentLocalClassLoad() throws Throwable {
+        assertTrue("Metrics must be enabled", Metrics.ENABLED);
+        final HookedModuleClassLoader classLoader = (HookedModuleClassLoader) moduleLoader.loadModule(MODULE_WITH_HOOKS_ID).getClassLoader();
+        final int threadCount = 8;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Class<?>[] classes = new Class<?>[threadCount];
+        final Throwable[] problems = new Throwable[threadCount];
+        final Thread[] threads = new Thread[threadCount];
+        final AtomicInteger defines = new AtomicInteger();
+        classLoader.hook = new DefineHook() {
+            public void preDefine(final String className) throws Exception {
+                defines.incrementAndGet();
+                // hold the definition until every other thread waits for it
+                final long deadline = System.currentTimeMillis() + 10000L;
+                for (Thread thread : threads) {
+                    while (thread != Thread.currentThread() && ! isAwaitingDefinition(thread) && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(5L);
+                    }
+                }
+            }
+        };
+        final int avoided = ((ModuleLoader) moduleLoader).getAvoidedDefineCount();
+        for (int i = 0; i < threadCount; i ++) {
+            final int idx = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        latch.await();
+                        classes[idx] = classLoader.loadClass(TestClass.class.getName());
+                    } catch (Throwable t) {
+                        problems[idx] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        latch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable problem : problems) {
+            if (problem != null) throw problem;
+        }
+        assertNotNull(classes[0]);
+        for (Class<?> clazz : classes) {
+            assertSame(classes[0], clazz);
+        }
+        assertEquals(1, defines.get());
+        assertEquals(avoided + threadCount - 1, ((ModuleLoader) moduleLoader).getAvoidedDefineCount());
+    }
+
+    @Test
+    public void testConcurrentLocalClassLoadFailure() throws Throwable {
+        final HookedModuleClassLoader classLoader = (HookedModuleClassLoader) moduleLoader.loadModule(MODULE_WITH_HOOKS_ID).getClassLoader();
+        final int threadCount = 4;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] problems = new Throwable[threadCount];
+        final Thread[] threads = new Thread[threadCount];
+        final ClassFormatError failure = new ClassFormatError("Test failure");
+        classLoader.hook = new DefineHook() {
+            public void preDefine(final String className) throws Exception {
+                // hold the definition until every other thread waits for it, then fail it
+                final long deadline = System.currentTimeMillis() + 10000L;
+                for (Thread thread : threads) {
+                    while (thread != Thread.currentThread() && ! isAwaitingDefinition(thread) && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(5L);
+                    }
+                }
+                throw failure;
+            }
+        };
+        final int avoided = ((ModuleLoader) moduleLoader).getAvoidedDefineCount();
+        for (int i = 0; i < threadCount; i ++) {
+            final int idx = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        latch.await();
+                        classLoader.loadClass(TestClass.class.getName());
+                    } catch (Throwable t) {
+                        problems[idx] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        latch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // each waiter gets an exception of its own, caused by the owner's
+        for (int i = 0; i < threadCount; i ++) {
+            Throwable cause = problems[i];
+            assertNotNull(cause);
+            for (int j = 0; j < i; j ++) {
+                assertNotSame(problems[j], problems[i]);
+            }
+            while (cause != null && cause != failure) {
+                cause = cause.getCause();
+            }
+            assertSame(failure, cause);
+        }
+        assertEquals(avoided, ((ModuleLoader) moduleLoader).getAvoidedDefineCount());
+    }
+
+    private static boolean isAwaitingDefinition(final Thread thread) {
+        if (thread.getState() != Thread.State.WAITING) {
+            return false;
+        }
+        for (StackTraceElement element : thread.getStackTrace()) {
+            if (element.getClassName().endsWith("$FutureClass") && element.getMethodName().equals("await")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testCrossThreadDefineCycle() throws Throwable {
+        final HookedModuleClassLoader classLoader = (HookedModuleClassLoader) moduleLoader.loadModule(MODULE_WITH_HOOKS_ID).getClassLoader();
+        final CountDownLatch definingTestClass = new CountDownLatch(1);
+        final CountDownLatch definingImportedClass = new CountDownLatch(1);
+        // each thread loads the class the other one is defining from within its own definition
+        classLoader.hook = new DefineHook() {
+            public void preDefine(final String className) throws Exception {
+                if (className.equals(TestClass.class.getName()) && definingTestClass.getCount() > 0) {
+                    definingTestClass.countDown();
+                    definingImportedClass.await();
+                    classLoader.loadClass(ImportedClass.class.getName());
+                } else if (className.equals(ImportedClass.class.getName()) && definingImportedClass.getCount() > 0) {
+                    definingImportedClass.countDown();
+                    definingTestClass.await();
+                    classLoader.loadClass(TestClass.class.getName());
+                }
+            }
+        };
+        final Class<?>[] classes = new Class<?>[2];
+        final Throwable[] problems = new Throwable[2];
+        final Thread[] threads = new Thread[2];
+        final String[] classNames = { TestClass.class.getName(), ImportedClass.class.getName() };
+        for (int i = 0; i < 2; i ++) {
+            final int idx = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        classes[idx] = classLoader.loadClass(classNames[idx]);
+                    } catch (Throwable t) {
+                        problems[idx] = t;
+                    }
+                }
+            });
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000L);
+            assertFalse("Deadlocked", thread.isAlive());
+        }
+        for (Throwable problem : problems) {
+            if (problem != null) throw problem;
+        }
+        assertSame(classes[0], classLoader.loadClass(TestClass.class.getName()));
+        assertSame(classes[1], classLoader.loadClass(ImportedClass.class.getName()));
+        assertSame(classLoader, classes[0].getClassLoader());
+    }
+
     @Test
     public void testResourceLoad() throws Exception {
         final Module testModule = moduleLoader.loadModule(MODULE_WITH_RESOURCE_ID);
@@ -183,6 +380,91 @@ public class ModuleClassLoaderTest extends AbstractModuleTestCase {
         }
     }
 
+    @Test
+    public void testLocalClassLoadNotFoundStackless() throws Exception {
+        moduleLoader.setStacklessExceptions(true);
+        final Module testModule = moduleLoader.loadModule(MODULE_WITH_CONTENT_ID);
+        final ModuleClassLoader classLoader = testModule.getClassLoader();
+
+        try {
+            classLoader.loadClass("org.jboss.modules.test.BogusClass");
+            fail("Should have thrown ClassNotFoundException");
+        } catch (ClassNotFoundException expected) {
+            assertEquals("org.jboss.modules.test.BogusClass from [" + MODULE_WITH_CONTENT_ID.getName() + "]", expected.getMessage());
+            assertEquals(0, expected.getStackTrace().length);
+        }
+    }
+
+    @Test
+    public void testLocalClassLoadNotFoundAfterRefresh() throws Exception {
+        final Module testModule = moduleLoader.loadModule(MODULE_TO_IMPORT_ID);
+        final ModuleClassLoader classLoader = testModule.getClassLoader();
+
+        for (int i = 0; i < 2; i ++) {
+            try {
+                classLoader.loadClass("org.jboss.modules.test.TestClass");
+                fail("Should have thrown ClassNotFoundException");
+            } catch (ClassNotFoundException expected) {
+            }
+        }
+
+        // the cached miss must not survive a change of resource loaders
+        moduleLoader.setAndRefreshResourceLoaders(testModule, Collections.singletonList(ResourceLoaderSpec.createResourceLoaderSpec(
+                TestResourceLoader.build()
+                .addClass(ImportedClass.class)
+                .addClass(TestClass.class)
+                .create()
+        )));
+        assertNotNull(classLoader.loadClass("org.jboss.modules.test.TestClass"));
+    }
+
+    @Test
+    public void testRefreshUpdatesDependents() throws Exception {
+        final Module testModule = moduleLoader.loadModule(MODULE_WITH_EXPORT_ID);
+        final ModuleClassLoader classLoader = testModule.getClassLoader();
+        assertNotNull(classLoader.loadClass("org.jboss.modules.test.ImportedClass"));
+        try {
+            classLoader.loadClass("org.jboss.modules.util.Util");
+            fail("Should have thrown ClassNotFoundException");
+        } catch (ClassNotFoundException expected) {
+        }
+
+        // a new package in the re-exported module must become visible through the exporting module
+        final Module importedModule = moduleLoader.loadModule(MODULE_TO_IMPORT_ID);
+        moduleLoader.setAndRefreshResourceLoaders(importedModule, Collections.singletonList(ResourceLoaderSpec.createResourceLoaderSpec(
+                TestResourceLoader.build()
+                .addClass(ImportedClass.class)
+                .addClass(ImportedInterface.class)
+                .addClass(Util.class)
+                .create()
+        )));
+        assertNotNull(classLoader.loadClass("org.jboss.modules.util.Util"));
+        assertNotNull(classLoader.loadClass("org.jboss.modules.test.ImportedClass"));
+    }
+
+    @Test
+    public void testRefreshKeepsDependentFilters() throws Exception {
+        final Module testModule = moduleLoader.loadModule(MODULE_WITH_FILTERED_IMPORT_ID);
+        final ModuleClassLoader classLoader = testModule.getClassLoader();
+        assertNotNull(classLoader.getResource("nestedTwo/nested.txt"));
+
+        // the new package is filtered out by the import, so only the unfiltered paths may be seen after the relink
+        final Module importedModule = moduleLoader.loadModule(MODULE_TO_IMPORT_ID);
+        moduleLoader.setAndRefreshResourceLoaders(importedModule, Collections.singletonList(ResourceLoaderSpec.createResourceLoaderSpec(
+                TestResourceLoader.build()
+                .addClass(ImportedClass.class)
+                .addClass(Util.class)
+                .addResources(getResource("test/modulecontentloader/rootTwo"))
+                .create()
+        )));
+        try {
+            classLoader.loadClass("org.jboss.modules.util.Util");
+            fail("Should have thrown ClassNotFoundException");
+        } catch (ClassNotFoundException expected) {
+        }
+        assertNotNull(classLoader.getResource("nestedTwo/nested.txt"));
+    }
+
     @Test
     public void testImportClassLoad() throws Exception {
         final Module testModule = moduleLoader.loadModule(MODULE_WITH_CONTENT_ID);
@@ -288,6 +570,23 @@ public class ModuleClassLoaderTest extends AbstractModuleTestCase {
         assertNull(resUrl);
     }
 
+    @Test
+    public void testResourceStreamRetrieval() throws Exception {
+        final Module testModule = moduleLoader.loadModule(MODULE_WITH_CONTENT_ID);
+        final ModuleClassLoader classLoader = testModule.getClassLoader();
+        final InputStream stream = classLoader.getResourceAsStream("test.txt");
+        assertNotNull(stream);
+        try {
+            assertArrayEquals(Util.readBytes(classLoader.getResource("test.txt").openStream()), Util.readBytes(stream));
+        } finally {
+            stream.close();
+        }
+        final InputStream importedStream = classLoader.getResourceAsStream("testTwo.txt");
+        assertNotNull(importedStream);
+        importedStream.close();
+        assertNull(classLoader.getResourceAsStream("bogus.txt"));
+    }
+
     @Test
     public void testImportResourceRetrieval() throws Exception {
         final Module testModule = moduleLoader.loadModule(MODULE_WITH_CONTENT_ID);
@@ -433,4 +732,31 @@ public class ModuleClassLoaderTest extends AbstractModuleTestCase {
         final Package pkg = testClass.getPackage();
         assertEquals("JBoss Modules Test Classes", pkg.getSpecificationTitle());
     }
+
+    interface DefineHook {
+        void preDefine(String className) throws Exception;
+    }
+
+    static final class HookedModuleClassLoader extends ModuleClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        volatile DefineHook hook;
+
+        HookedModuleClassLoader(final Configuration configuration) {
+            super(configuration);
+        }
+
+        protected void preDefine(final ClassSpec classSpec, final String className) {
+            final DefineHook hook = this.hook;
+            if (hook != null) try {
+                hook.preDefine(className);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
 }
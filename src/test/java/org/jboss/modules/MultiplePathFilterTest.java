@@ -0,0 +1,116 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.jboss.modules.filter.MultiplePathFilterBuilder;
+import org.jboss.modules.filter.PathFilter;
+import org.jboss.modules.filter.PathFilters;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test to verify that compiled multiple path filters give the same first-match result as evaluating each filter in
+ * turn.
+ */
+public class MultiplePathFilterTest {
+
+    private static final String[] SEGMENTS = { "org", "jboss", "modules", "foo", "bar", "META-INF", "services", "Foo.class", "x" };
+
+    @Test
+    public void testGeneratedFilters() {
+        final Random random = new Random(1234L);
+        final List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            paths.add(generatePath(random));
+        }
+        for (int round = 0; round < 200; round++) {
+            final boolean defaultVal = random.nextBoolean();
+            final MultiplePathFilterBuilder builder = PathFilters.multiplePathFilterBuilder(defaultVal);
+            final List<PathFilter> filters = new ArrayList<PathFilter>();
+            final List<Boolean> includes = new ArrayList<Boolean>();
+            final int count = random.nextInt(round < 100 ? 12 : 200) + 1;
+            for (int i = 0; i < count; i++) {
+                final PathFilter filter = generateFilter(random);
+                final boolean include = random.nextBoolean();
+                builder.addFilter(filter, include);
+                filters.add(filter);
+                includes.add(Boolean.valueOf(include));
+            }
+            final PathFilter compiled = builder.create();
+            for (String path : paths) {
+                boolean expected = defaultVal;
+                for (int i = 0; i < filters.size(); i++) {
+                    if (filters.get(i).accept(path)) {
+                        expected = includes.get(i).booleanValue();
+                        break;
+                    }
+                }
+                assertEquals(compiled + " accepting " + path, expected, compiled.accept(path));
+            }
+        }
+    }
+
+    private static String generatePath(final Random random) {
+        final StringBuilder b = new StringBuilder();
+        final int count = random.nextInt(4) + 1;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                b.append('/');
+            }
+            b.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+        }
+        return b.toString();
+    }
+
+    private static PathFilter generateFilter(final Random random) {
+        switch (random.nextInt(12)) {
+            case 0:
+            case 1: return PathFilters.is(generatePath(random));
+            case 2:
+            case 3: return PathFilters.isChildOf(generatePath(random));
+            case 4: {
+                final Set<String> set = new HashSet<String>();
+                for (int i = random.nextInt(4); i >= 0; i--) {
+                    set.add(generatePath(random));
+                }
+                return PathFilters.in(set);
+            }
+            case 5: return PathFilters.match("**/" + SEGMENTS[random.nextInt(SEGMENTS.length)]);
+            case 6: return PathFilters.match("*/" + SEGMENTS[random.nextInt(SEGMENTS.length)] + "/**");
+            case 7: return PathFilters.not(PathFilters.isChildOf(generatePath(random)));
+            case 8: return random.nextInt(10) == 0 ? PathFilters.acceptAll() : PathFilters.rejectAll();
+            default: {
+                final String path = generatePath(random);
+                final int cut = random.nextInt(path.length() + 1);
+                return PathFilters.match(path.substring(0, cut) + (random.nextBoolean() ? "*" : "/**"));
+            }
+        }
+    }
+}
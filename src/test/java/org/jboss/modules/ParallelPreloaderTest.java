@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import org.jboss.modules.util.TestModuleLoader;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test to verify that parallel preloading loads the same modules that linking visits.
+ */
+public class ParallelPreloaderTest extends AbstractModuleTestCase {
+
+    private static final ModuleIdentifier MODULE_A = ModuleIdentifier.fromString("test-preload-a");
+    private static final ModuleIdentifier MODULE_B = ModuleIdentifier.fromString("test-preload-b");
+    private static final ModuleIdentifier MODULE_C = ModuleIdentifier.fromString("test-preload-c");
+    private static final ModuleIdentifier MODULE_D = ModuleIdentifier.fromString("test-preload-d");
+    private static final ModuleIdentifier MODULE_E = ModuleIdentifier.fromString("test-preload-e");
+
+    private TestModuleLoader moduleLoader;
+
+    @Before
+    public void setupModuleLoader() throws Exception {
+        moduleLoader = new TestModuleLoader();
+        // A imports B; B re-exports C and imports D; C and D both import E
+        addModule(MODULE_A, DependencySpec.createModuleDependencySpec(MODULE_B));
+        addModule(MODULE_B, DependencySpec.createModuleDependencySpec(MODULE_C, true), DependencySpec.createModuleDependencySpec(MODULE_D));
+        addModule(MODULE_C, DependencySpec.createModuleDependencySpec(MODULE_E, true));
+        addModule(MODULE_D, DependencySpec.createModuleDependencySpec(MODULE_E, true));
+        addModule(MODULE_E);
+    }
+
+    private void addModule(final ModuleIdentifier identifier, final DependencySpec... dependencies) {
+        final ModuleSpec.Builder builder = ModuleSpec.build(identifier);
+        for (DependencySpec dependency : dependencies) {
+            builder.addDependency(dependency);
+        }
+        builder.addDependency(DependencySpec.createLocalDependencySpec());
+        moduleLoader.addModuleSpec(builder.create());
+    }
+
+    @Test
+    public void testPreloadFollowsExports() throws Exception {
+        final ModuleLoader loader = moduleLoader;
+        final Module module = loader.preloadModule(MODULE_A);
+        assertNull(loader.findLoadedModuleLocal(MODULE_B));
+
+        ParallelPreloader.preload(module.getDependencies());
+
+        assertNotNull(loader.findLoadedModuleLocal(MODULE_B));
+        assertNotNull(loader.findLoadedModuleLocal(MODULE_C));
+        assertNotNull(loader.findLoadedModuleLocal(MODULE_E));
+        // not exported by B, so linking A never visits it
+        assertNull(loader.findLoadedModuleLocal(MODULE_D));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test to verify the path index against a hash map, and its compact layout.
+ */
+public class PathIndexTest {
+
+    private static final int PATHS = 1000;
+
+    private static Map<String, List<Object>> createMap(final String[] paths, final Object[] loaders, final Random random) {
+        final Map<String, List<Object>> map = new HashMap<String, List<Object>>();
+        for (String path : paths) {
+            // like ModuleClassLoader.setResourceLoaders used to do
+            final List<Object> list = new ArrayList<Object>(16);
+            final int cnt = 1 + random.nextInt(3);
+            for (int i = 0; i < cnt; i++) {
+                list.add(loaders[random.nextInt(loaders.length)]);
+            }
+            map.put(path, list);
+        }
+        return map;
+    }
+
+    private static String[] createPaths() {
+        final String[] paths = new String[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            paths[i] = "org/jboss/modules/test/p" + (i / 10) + "/q" + i;
+        }
+        return paths;
+    }
+
+    @Test
+    public void testSameContent() {
+        final Random random = new Random(7L);
+        final Map<String, List<Object>> map = createMap(createPaths(), new Object[] { "a", "b", "c", "d" }, random);
+        final Map<String, List<Object>> index = PathIndex.of(map);
+        assertEquals(map, index);
+        assertEquals(map.keySet(), index.keySet());
+        for (Map.Entry<String, List<Object>> entry : map.entrySet()) {
+            // look up with a fresh, non-interned key
+            assertEquals(entry.getValue(), index.get(new String(entry.getKey())));
+            assertTrue(index.containsKey(entry.getKey()));
+        }
+        assertNull(index.get("org/jboss/modules/missing"));
+        assertNull(index.get(null));
+        assertTrue(PathIndex.of(new HashMap<String, List<Object>>()).isEmpty());
+    }
+
+    @Test
+    public void testCompactStructure() {
+        final String[] paths = createPaths();
+        final Object[] loaders = new Object[] { "a", "b", "c", "d" };
+        final Map<String, List<Object>> index = PathIndex.of(createMap(paths, loaders, new Random(7L)));
+        final Map<String, List<Object>> other = PathIndex.of(createMap(createPaths(), loaders, new Random(11L)));
+        final Class<?> fixedList = Arrays.asList(new Object[2]).getClass();
+        final Class<?> singletonList = Collections.singletonList(null).getClass();
+        for (Map.Entry<String, List<Object>> entry : index.entrySet()) {
+            final List<Object> value = entry.getValue();
+            // exact-size immutable lists instead of the oversized array lists of the source map
+            assertTrue(value.size() == 1 ? value.getClass() == singletonList : value.getClass() == fixedList);
+            // path names are shared between indexes
+            assertSame(entry.getKey().intern(), entry.getKey());
+            for (Map.Entry<String, List<Object>> otherEntry : other.entrySet()) {
+                if (otherEntry.getKey().equals(entry.getKey())) {
+                    assertSame(entry.getKey(), otherEntry.getKey());
+                }
+            }
+        }
+        // an index is not copied again, and neither are its lists
+        assertSame(index, PathIndex.of(index));
+        final Map<String, List<Object>> copy = PathIndex.of(new HashMap<String, List<Object>>(index));
+        for (String path : paths) {
+            assertSame(index.get(path), copy.get(path));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test to verify the prefix matcher used for the system packages and paths.
+ */
+public class PrefixMatcherTest {
+
+    @Test
+    public void testMatches() throws Exception {
+        final PrefixMatcher matcher = new PrefixMatcher(new String[] { "java.", "sun.reflect.", "__redirected.", "javax.activation." });
+        assertTrue(matcher.matches("java.lang.String"));
+        assertTrue(matcher.matches("java."));
+        assertFalse(matcher.matches("java"));
+        assertFalse(matcher.matches("javax.swing.JFrame"));
+        assertTrue(matcher.matches("javax.activation.DataHandler"));
+        assertTrue(matcher.matches("sun.reflect.Reflection"));
+        assertFalse(matcher.matches("sun.misc.Unsafe"));
+        assertFalse(matcher.matches(""));
+        assertTrue(matcher.matches("java", '.'));
+        assertTrue(matcher.matches("javax.activation", '.'));
+        assertFalse(matcher.matches("javax", '.'));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final PrefixMatcher matcher = new PrefixMatcher(new String[0]);
+        assertFalse(matcher.matches("java.lang.String"));
+        assertFalse(matcher.matches(""));
+        assertFalse(matcher.matches("java", '.'));
+    }
+
+    @Test
+    public void testAgainstLinearScan() throws Exception {
+        final Random random = new Random(4711L);
+        for (int count : new int[] { 0, 10, 100 }) {
+            final List<String> prefixes = new ArrayList<String>();
+            for (int i = 0; i < count; i ++) {
+                prefixes.add(randomName(random) + ".");
+            }
+            final String[] array = prefixes.toArray(new String[prefixes.size()]);
+            final PrefixMatcher matcher = new PrefixMatcher(array);
+            for (int i = 0; i < 10000; i ++) {
+                final String name = random.nextBoolean() && count > 0 ? array[random.nextInt(count)] + randomName(random) : randomName(random);
+                boolean expected = false;
+                for (String prefix : array) {
+                    if (name.startsWith(prefix)) {
+                        expected = true;
+                        break;
+                    }
+                }
+                assertEquals(name, expected, matcher.matches(name));
+                boolean expectedPackage = false;
+                for (String prefix : array) {
+                    if ((name + ".").startsWith(prefix)) {
+                        expectedPackage = true;
+                        break;
+                    }
+                }
+                assertEquals(name, expectedPackage, matcher.matches(name, '.'));
+            }
+        }
+    }
+
+    private static String randomName(final Random random) {
+        final StringBuilder b = new StringBuilder();
+        final int segments = 1 + random.nextInt(3);
+        for (int i = 0; i < segments; i ++) {
+            if (i > 0) b.append('.');
+            final int length = 1 + random.nextInt(3);
+            for (int j = 0; j < length; j ++) {
+                b.append((char) ('a' + random.nextInt(3)));
+            }
+        }
+        return b.toString();
+    }
+}
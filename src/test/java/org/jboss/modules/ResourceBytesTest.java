@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+/**
+ * Test for reading resource bytes into exact-size arrays.
+ */
+public class ResourceBytesTest {
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static InputStream trickle(final byte[] bytes, final int chunk) {
+        return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    @Test
+    public void testReadAll() throws Exception {
+        for (int size : new int[] { 0, 1, 16383, 16384, 16385, 100000 }) {
+            final byte[] bytes = randomBytes(size);
+            assertArrayEquals(bytes, ResourceBytes.readAll(new ByteArrayInputStream(bytes)));
+            assertArrayEquals(bytes, ResourceBytes.readAll(trickle(bytes, 1000)));
+        }
+    }
+
+    @Test
+    public void testReadSized() throws Exception {
+        final byte[] bytes = randomBytes(50000);
+        assertArrayEquals(bytes, ResourceBytes.read(trickle(bytes, 777), bytes.length));
+        // a stream shorter than its declared size yields what is there
+        assertArrayEquals(Arrays.copyOf(bytes, 1000), ResourceBytes.read(new ByteArrayInputStream(bytes, 0, 1000), bytes.length));
+    }
+
+    @Test
+    public void testReadFile() throws Exception {
+        final File file = File.createTempFile("resource-bytes", ".class");
+        try {
+            final byte[] bytes = randomBytes(40000);
+            final FileOutputStream os = new FileOutputStream(file);
+            try {
+                os.write(bytes);
+            } finally {
+                os.close();
+            }
+            assertArrayEquals(bytes, ResourceBytes.read(file.toPath()));
+            // a file used as a directory is a miss, like a missing file
+            assertNull(ResourceBytes.read(new File(file, "Child.class").toPath()));
+        } finally {
+            file.delete();
+        }
+        assertNull(ResourceBytes.read(file.toPath()));
+        assertNull(ResourceBytes.read(file.getParentFile().toPath()));
+    }
+
+    @Test
+    public void testPooledInflater() throws Exception {
+        final Inflater inflater = ResourceBytes.getInflater();
+        ResourceBytes.releaseInflater(inflater);
+        assertSame(inflater, ResourceBytes.getInflater());
+    }
+}
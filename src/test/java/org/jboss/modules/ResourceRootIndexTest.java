@@ -0,0 +1,182 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the binary resource root index.
+ */
+public class ResourceRootIndexTest {
+
+    private static final long PAST = System.currentTimeMillis() - 60000L;
+
+    private File dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = File.createTempFile("root-index", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        delete(dir);
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) for (File child : files) {
+            delete(child);
+        }
+        file.delete();
+    }
+
+    private File createJar() throws IOException {
+        final File jar = new File(dir, "test.jar");
+        final JarOutputStream os = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (String name : new String[] { "a/b/C.class", "a/D.class", "a/e/", "x.txt", "META-INF/services/foo" }) {
+                os.putNextEntry(new JarEntry(name));
+                os.closeEntry();
+            }
+        } finally {
+            os.close();
+        }
+        assertTrue(jar.setLastModified(PAST));
+        return jar;
+    }
+
+    private static Set<String> set(final String... paths) {
+        return new HashSet<String>(Arrays.asList(paths));
+    }
+
+    @Test
+    public void testJarIndex() throws Exception {
+        final File jar = createJar();
+        final File indexFile = ResourceRootIndex.getIndexFile(jar);
+        final JarFile jarFile = new JarFile(jar);
+        try {
+            final Set<String> paths = set("", "a", "a/b", "a/e", "META-INF/services");
+            assertEquals(paths, new HashSet<String>(new JarFileResourceLoader("test", jarFile).getPaths()));
+            assertTrue(indexFile.exists());
+            final ResourceRootIndex index = ResourceRootIndex.read(jar, true);
+            assertNotNull(index);
+            assertEquals(paths, index.getPaths(new HashSet<String>(), null));
+            final Map<String, List<String>> entries = index.getEntries();
+            assertEquals(Collections.singletonList("C.class"), entries.get("a/b"));
+            assertEquals(Collections.singletonList("D.class"), entries.get("a"));
+            assertEquals(Collections.singletonList("x.txt"), entries.get(""));
+            assertNull(entries.get("a/e"));
+            assertNull(ResourceRootIndex.read(jar, false).getEntries());
+            // the index now answers for the jar, also for nested roots
+            assertEquals(paths, new HashSet<String>(new JarFileResourceLoader("test", jarFile).getPaths()));
+            assertEquals(set("", "b", "e"), new HashSet<String>(new JarFileResourceLoader("test", jarFile, "a").getPaths()));
+            assertEquals(paths, new HashSet<String>(MappedJarResourceLoader.create("test", jar).getPaths()));
+        } finally {
+            jarFile.close();
+        }
+        // a changed jar makes the index stale
+        assertTrue(jar.setLastModified(PAST - 10000L));
+        assertNull(ResourceRootIndex.read(jar, false));
+    }
+
+    @Test
+    public void testCorruptIndex() throws Exception {
+        final File jar = createJar();
+        final JarFile jarFile = new JarFile(jar);
+        try {
+            new JarFileResourceLoader("test", jarFile).getPaths();
+        } finally {
+            jarFile.close();
+        }
+        final File indexFile = ResourceRootIndex.getIndexFile(jar);
+        assertNotNull(ResourceRootIndex.read(jar, false));
+        final RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            final int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertNull(ResourceRootIndex.read(jar, false));
+        assertTrue(indexFile.delete());
+        assertTrue(indexFile.createNewFile());
+        assertNull(ResourceRootIndex.read(jar, false));
+    }
+
+    @Test
+    public void testDirectoryIndex() throws Exception {
+        final File root = new File(dir, "root");
+        assertTrue(new File(root, "a/b").mkdirs());
+        assertTrue(new File(root, "c").mkdirs());
+        assertTrue(new File(root, "a/b/D.class").createNewFile());
+        for (String path : new String[] { "a/b", "a", "c", "" }) {
+            assertTrue(new File(root, path).setLastModified(PAST));
+        }
+        final Set<String> paths = set("", "a", "a/b", "c");
+        assertEquals(paths, new HashSet<String>(new FileResourceLoader("test", root).getPaths()));
+        final ResourceRootIndex index = ResourceRootIndex.read(root, true);
+        assertNotNull(index);
+        assertEquals(paths, index.getPaths(new HashSet<String>(), null));
+        assertEquals(Collections.singletonList("D.class"), index.getEntries().get("a/b"));
+        // a new directory deep in the tree makes the index stale
+        assertTrue(new File(root, "a/b/f").mkdir());
+        assertTrue(new File(root, "a/b").setLastModified(PAST + 1000L));
+        assertNull(ResourceRootIndex.read(root, false));
+        assertEquals(set("", "a", "a/b", "a/b/f", "c"), new HashSet<String>(new FileResourceLoader("test", root).getPaths()));
+    }
+
+    @Test
+    public void testRecentlyModifiedRootNotIndexed() throws Exception {
+        final File root = new File(dir, "root");
+        assertTrue(new File(root, "a").mkdirs());
+        assertEquals(set("", "a"), new HashSet<String>(new FileResourceLoader("test", root).getPaths()));
+        assertFalse(ResourceRootIndex.getIndexFile(root).exists());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.modules.test.QuxBar;
+import org.jboss.modules.test.QuxFoo;
+import org.jboss.modules.util.TestModuleLoader;
+import org.jboss.modules.util.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the watcher of exploded resource roots.
+ */
+public class ResourceRootWatcherTest {
+
+    private static final ModuleIdentifier MODULE_ID = ModuleIdentifier.fromString("test-watched");
+
+    private File dir;
+    private ResourceRootWatcher watcher;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = File.createTempFile("root-watcher", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void stopWatcher() throws InterruptedException {
+        if (watcher != null) {
+            final Thread thread = watcher.getThread();
+            watcher.close();
+            if (thread != null) {
+                thread.join(10000L);
+                assertFalse(thread.isAlive());
+            }
+        }
+        delete(dir);
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) for (File child : files) {
+            delete(child);
+        }
+        file.delete();
+    }
+
+    private Module createModule(final FileResourceLoader loader) throws Exception {
+        final TestModuleLoader moduleLoader = new TestModuleLoader();
+        final ModuleSpec.Builder builder = ModuleSpec.build(MODULE_ID);
+        if (loader != null) {
+            builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(loader));
+        }
+        builder.addDependency(DependencySpec.createLocalDependencySpec());
+        moduleLoader.addModuleSpec(builder.create());
+        return moduleLoader.loadModule(MODULE_ID);
+    }
+
+    private static int countThreads(final String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testReplacedLoaders() throws Exception {
+        watcher = new ResourceRootWatcher(50L, "test root watcher");
+        final File root = new File(dir, "root");
+        assertTrue(root.mkdir());
+        final Module module = createModule(null);
+        final Module otherModule = createModule(null);
+        watcher.register(module, Collections.singletonList(new FileResourceLoader("root", root)));
+        // new loaders of the same module replace its old ones
+        watcher.register(module, Collections.singletonList(new FileResourceLoader("root", root)));
+        assertEquals(1, watcher.getLoaderCount(root.toPath()));
+        watcher.register(otherModule, Collections.singletonList(new FileResourceLoader("root", root)));
+        assertEquals(2, watcher.getLoaderCount(root.toPath()));
+        // a module which no longer uses the root takes its loaders with it
+        watcher.register(otherModule, Collections.<FileResourceLoader>emptyList());
+        assertEquals(1, watcher.getLoaderCount(root.toPath()));
+        assertEquals(1, watcher.getRootCount());
+    }
+
+    @Test
+    public void testManyRootsOneThread() throws Exception {
+        watcher = new ResourceRootWatcher(50L, "test root watcher");
+        final Module module = createModule(null);
+        final List<FileResourceLoader> loaders = new ArrayList<FileResourceLoader>();
+        for (int i = 0; i < 1000; i ++) {
+            final File root = new File(dir, "root" + i);
+            assertTrue(new File(root, "org/acme").mkdirs());
+            loaders.add(new FileResourceLoader("root" + i, root));
+        }
+        watcher.register(module, loaders.subList(0, 1));
+        final int threads = Thread.getAllStackTraces().size();
+        watcher.register(module, loaders);
+        assertEquals(1000, watcher.getRootCount());
+        assertEquals(1, countThreads("test root watcher"));
+        assertEquals(threads, Thread.getAllStackTraces().size());
+        // an idle watcher waits without a timeout; it does not poll
+        final Thread thread = watcher.getThread();
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+        watcher.register(module, Collections.<FileResourceLoader>emptyList());
+        assertEquals(0, watcher.getRootCount());
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        watcher = new ResourceRootWatcher(50L, "test root watcher");
+        final File root = new File(dir, "root");
+        assertTrue(new File(root, "META-INF").mkdirs());
+        final FileResourceLoader loader = new FileResourceLoader("root", root);
+        final Module module = createModule(loader);
+        watcher.register(module, Collections.singletonList(loader));
+        final ModuleClassLoader classLoader = module.getClassLoader();
+        try {
+            classLoader.loadClass(QuxBar.class.getName());
+            fail("Expected ClassNotFoundException");
+        } catch (ClassNotFoundException expected) {
+        }
+        // a new package directory relinks the module
+        final File packageDir = new File(root, "org/jboss/modules/test");
+        assertTrue(packageDir.mkdirs());
+        copyClass(QuxBar.class, packageDir);
+        assertSame(classLoader, awaitClass(classLoader, QuxBar.class.getName()).getClassLoader());
+        // a new file in an existing package only invalidates the caches
+        try {
+            classLoader.loadClass(QuxFoo.class.getName());
+            fail("Expected ClassNotFoundException");
+        } catch (ClassNotFoundException expected) {
+        }
+        copyClass(QuxFoo.class, packageDir);
+        assertSame(classLoader, awaitClass(classLoader, QuxFoo.class.getName()).getClassLoader());
+    }
+
+    private static void copyClass(final Class<?> clazz, final File packageDir) throws IOException {
+        final String simpleName = clazz.getName().substring(clazz.getName().lastIndexOf('.') + 1);
+        final InputStream is = clazz.getClassLoader().getResourceAsStream(clazz.getName().replace('.', '/') + ".class");
+        final byte[] bytes;
+        try {
+            bytes = Util.readBytes(is);
+        } finally {
+            is.close();
+        }
+        final FileOutputStream os = new FileOutputStream(new File(packageDir, simpleName + ".class"));
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static Class<?> awaitClass(final ClassLoader classLoader, final String name) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        for (;;) {
+            try {
+                return classLoader.loadClass(name);
+            } catch (ClassNotFoundException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20L);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the JAR files shared between resource loaders.
+ */
+public class SharedJarFileTest {
+
+    private File jar;
+
+    @Before
+    public void createJar() throws IOException {
+        jar = File.createTempFile("shared-jar", ".jar");
+        writeJar("a/B.txt");
+    }
+
+    @After
+    public void deleteJar() {
+        jar.delete();
+        ResourceRootIndex.getIndexFile(jar).delete();
+    }
+
+    private void writeJar(final String... names) throws IOException {
+        writeJar(jar, names);
+    }
+
+    private static void writeJar(final File file, final String... names) throws IOException {
+        final JarOutputStream os = new JarOutputStream(new FileOutputStream(file));
+        try {
+            for (String name : names) {
+                os.putNextEntry(new JarEntry(name));
+                os.write(name.getBytes("UTF-8"));
+                os.closeEntry();
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void assertClosed(final JarFile jarFile) {
+        try {
+            jarFile.size();
+            fail("Expected the JAR to be closed");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testSharing() throws Exception {
+        final SharedJarFile first = ResourceLoaders.acquireJarFile(jar);
+        final SharedJarFile second = ResourceLoaders.acquireJarFile(new File(jar.getParentFile(), "./" + jar.getName()));
+        assertSame(first, second);
+        final JarFile jarFile = first.getJarFile();
+        first.release();
+        assertNotNull(jarFile.getEntry("a/B.txt"));
+        second.release();
+        assertClosed(jarFile);
+        assertFalse(ResourceLoaders.SHARED_JAR_FILES.containsKey(jar.getCanonicalPath()));
+        // a closed JAR is reopened on demand
+        final SharedJarFile third = ResourceLoaders.acquireJarFile(jar);
+        assertNotSame(first, third);
+        assertNotNull(third.getJarFile().getEntry("a/B.txt"));
+        third.release();
+    }
+
+    @Test
+    public void testReplacedJar() throws Exception {
+        final SharedJarFile first = ResourceLoaders.acquireJarFile(jar);
+        // replace the JAR the supported way, by renaming a new file over it
+        final File replacement = File.createTempFile("shared-jar", ".jar");
+        writeJar(replacement, "a/B.txt", "a/C.txt");
+        Files.move(replacement.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        final SharedJarFile second = ResourceLoaders.acquireJarFile(jar);
+        assertNotSame(first, second);
+        assertNotNull(second.getJarFile().getEntry("a/C.txt"));
+        // the old JAR stays open for its remaining user
+        assertNotNull(first.getJarFile().getEntry("a/B.txt"));
+        first.release();
+        assertClosed(first.getJarFile());
+        assertSame(second, ResourceLoaders.SHARED_JAR_FILES.get(jar.getCanonicalPath()));
+        second.release();
+    }
+
+    @Test
+    public void testReleasedOnCollection() throws Exception {
+        ResourceLoader loader = ResourceLoaders.createSharedJarResourceLoader("shared", jar);
+        assertNotNull(loader.getResource("a/B.txt"));
+        final JarFile jarFile = ResourceLoaders.SHARED_JAR_FILES.get(jar.getCanonicalPath()).getJarFile();
+        loader = null;
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (ResourceLoaders.SHARED_JAR_FILES.containsKey(jar.getCanonicalPath()) && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        assertFalse(ResourceLoaders.SHARED_JAR_FILES.containsKey(jar.getCanonicalPath()));
+        assertClosed(jarFile);
+    }
+
+    @Test
+    public void testStreamOutlivesLoader() throws Exception {
+        ResourceLoader loader = ResourceLoaders.createSharedJarResourceLoader("shared", jar);
+        final InputStream is = loader.getResource("a/B.txt").openStream();
+        final SharedJarFile sharedJarFile = ResourceLoaders.SHARED_JAR_FILES.get(jar.getCanonicalPath());
+        loader = null;
+        for (int i = 0; i < 10; i ++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        // the open stream keeps the JAR open
+        assertSame(sharedJarFile, ResourceLoaders.SHARED_JAR_FILES.get(jar.getCanonicalPath()));
+        try {
+            final byte[] bytes = new byte[7];
+            int count = 0, res;
+            while (count < bytes.length && (res = is.read(bytes, count, bytes.length - count)) > 0) {
+                count += res;
+            }
+            assertEquals("a/B.txt", new String(bytes, 0, count, "UTF-8"));
+        } finally {
+            is.close();
+        }
+    }
+}
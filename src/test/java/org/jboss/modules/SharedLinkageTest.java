@@ -0,0 +1,140 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.modules;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.modules.test.ImportedClass;
+import org.jboss.modules.test.TestClass;
+import org.jboss.modules.util.TestModuleLoader;
+import org.jboss.modules.util.TestResourceLoader;
+import org.jboss.modules.util.Util;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test to verify that modules with equivalent dependencies share the linkage contributed by those dependencies.
+ */
+public class SharedLinkageTest extends AbstractModuleTestCase {
+
+    private static final ModuleIdentifier MODULE_A = ModuleIdentifier.fromString("test-shared-a");
+    private static final ModuleIdentifier MODULE_B = ModuleIdentifier.fromString("test-shared-b");
+    private static final ModuleIdentifier MODULE_C = ModuleIdentifier.fromString("test-shared-c");
+    private static final ModuleIdentifier MODULE_D = ModuleIdentifier.fromString("test-shared-d");
+    private static final ModuleIdentifier MODULE_TO_IMPORT = ModuleIdentifier.fromString("test-shared-import");
+
+    private TestModuleLoader moduleLoader;
+
+    @Before
+    public void setupModuleLoader() throws Exception {
+        moduleLoader = new TestModuleLoader();
+        addModule(MODULE_A);
+        addModule(MODULE_B);
+        addAggregateModule(MODULE_C);
+        addAggregateModule(MODULE_D);
+
+        final ModuleSpec.Builder builder = ModuleSpec.build(MODULE_TO_IMPORT);
+        builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(
+                TestResourceLoader.build()
+                .addClass(ImportedClass.class)
+                .addClass(Util.class)
+                .create()
+        ));
+        builder.addDependency(DependencySpec.createLocalDependencySpec());
+        moduleLoader.addModuleSpec(builder.create());
+    }
+
+    private void addModule(final ModuleIdentifier identifier) throws Exception {
+        final ModuleSpec.Builder builder = ModuleSpec.build(identifier);
+        builder.addResourceRoot(ResourceLoaderSpec.createResourceLoaderSpec(
+                TestResourceLoader.build()
+                .addClass(TestClass.class)
+                .create()
+        ));
+        builder.addDependency(DependencySpec.createModuleDependencySpec(MODULE_TO_IMPORT));
+        builder.addDependency(DependencySpec.createLocalDependencySpec());
+        moduleLoader.addModuleSpec(builder.create());
+    }
+
+    private void addAggregateModule(final ModuleIdentifier identifier) throws Exception {
+        final ModuleSpec.Builder builder = ModuleSpec.build(identifier);
+        builder.addDependency(DependencySpec.createModuleDependencySpec(MODULE_TO_IMPORT, true));
+        builder.addDependency(DependencySpec.createLocalDependencySpec());
+        moduleLoader.addModuleSpec(builder.create());
+    }
+
+    @Test
+    public void testMapsSharedWithoutLocalPaths() throws Exception {
+        final Module moduleC = moduleLoader.loadModule(MODULE_C);
+        final Module moduleD = moduleLoader.loadModule(MODULE_D);
+        // nothing local to merge, so both modules use the shared maps themselves
+        assertSame(moduleC.getPaths(false), moduleD.getPaths(false));
+        assertSame(moduleC.getPaths(true), moduleD.getPaths(true));
+        assertNotNull(moduleC.getClassLoader().loadClass(Util.class.getName()));
+    }
+
+    @Test
+    public void testLinkageShared() throws Exception {
+        final ModuleLoader loader = moduleLoader;
+        final Module moduleA = loader.loadModule(MODULE_A);
+        final Module moduleB = loader.loadModule(MODULE_B);
+        final Map<String, List<LocalLoader>> pathsA = moduleA.getPaths(false);
+        final Map<String, List<LocalLoader>> pathsB = moduleB.getPaths(false);
+        assertEquals(1, loader.getSharedLinkageCount());
+
+        // only imported, so the loader list is shared
+        assertSame(pathsA.get("org/jboss/modules/util"), pathsB.get("org/jboss/modules/util"));
+        // imported and local, so each module has its own loader list
+        final List<LocalLoader> listA = pathsA.get("org/jboss/modules/test");
+        final List<LocalLoader> listB = pathsB.get("org/jboss/modules/test");
+        assertNotSame(listA, listB);
+        assertEquals(2, listA.size());
+        assertEquals(2, listB.size());
+        assertSame(listA.get(0), listB.get(0));
+
+        assertNotNull(moduleA.getClassLoader().loadClass(Util.class.getName()));
+        assertSame(moduleA, Module.forClass(moduleA.getClassLoader().loadClass(TestClass.class.getName())));
+        assertSame(moduleB, Module.forClass(moduleB.getClassLoader().loadClass(TestClass.class.getName())));
+    }
+
+    @Test
+    public void testSharedLinkageReleased() throws Exception {
+        final ModuleLoader loader = moduleLoader;
+        final Module moduleA = loader.loadModule(MODULE_A);
+        final Module moduleB = loader.loadModule(MODULE_B);
+        moduleA.getPaths(false);
+        moduleB.getPaths(false);
+        assertEquals(1, loader.getSharedLinkageCount());
+
+        loader.unloadModuleLocal(moduleA);
+        assertEquals(1, loader.getSharedLinkageCount());
+        loader.unloadModuleLocal(moduleB);
+        assertEquals(0, loader.getSharedLinkageCount());
+    }
+}